@@ -8,30 +8,35 @@ import android.app.DatePickerDialog;
 import android.app.Dialog;
 import android.database.Cursor;
 import android.os.Bundle;
+import android.support.v4.app.LoaderManager.LoaderCallbacks;
+import android.support.v4.content.Loader;
+import android.support.v4.widget.SimpleCursorAdapter;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.View;
+import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.DatePicker;
-import android.widget.SimpleCursorAdapter;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.actionbarsherlock.app.SherlockActivity;
+import com.actionbarsherlock.app.SherlockFragmentActivity;
 
 /**
  * Addfueling - a class for implementing the activity of adding a fueling.
  */
-public class AddFueling extends SherlockActivity {
+public class AddFueling extends SherlockFragmentActivity {
 	private static final String TAG = "FuelMonitorAddFueling"; /*
 																 * The tag for
 																 * identifying
 																 * this activity
 																 */
+	private static final int VEHICLES_LOADER = 0;
+	private static final int FUELING_LOADER = 1;
 	private FuelMonitorDbAdapter mDbHelper; /*
 											 * The class for managing the data
 											 * base
@@ -100,106 +105,126 @@ public class AddFueling extends SherlockActivity {
 
 		mDbHelper.open();
 
-		Cursor vehicleCursor = mDbHelper.fetchVehicles();
-		// TODO Use a CursorLoader (startManagingCursor is deprecated)
-		startManagingCursor(vehicleCursor);
-
-		SimpleCursorAdapter vehicleAdapter = new SimpleCursorAdapter(this,
-				android.R.layout.simple_spinner_item, vehicleCursor,
+		final SimpleCursorAdapter vehicleAdapter = new SimpleCursorAdapter(this,
+				android.R.layout.simple_spinner_item, null,
 				new String[] { "registration" },
-				new int[] { android.R.id.text1 });
+				new int[] { android.R.id.text1 }, 0);
 
 		vehicle.setAdapter(vehicleAdapter);
 
-		if (edit) {
+		// get the current date, replaced by the date of the fueling once it
+		// is loaded in edit mode
+		Calendar today = Calendar.getInstance();
+		mYear = today.get(Calendar.YEAR);
+		mMonth = today.get(Calendar.MONTH);
+		mDay = today.get(Calendar.DAY_OF_MONTH);
+
+		if (edit)
 			mFuelingID = getIntent().getLongExtra("fuelingID", 0);
-			Cursor editFueling = mDbHelper.getFuelingByID(mFuelingID);
-			editFueling.moveToFirst();
-			// This is needed in case one vehicle (in the middle) had been
-			// deleted
-			SimpleCursorAdapter adapter = (SimpleCursorAdapter) vehicle
-					.getAdapter();
-			Cursor cursor = adapter.getCursor();
-			long findId = editFueling.getLong(editFueling
-					.getColumnIndex("idVehicle"));
-			for (int i = 0; i < adapter.getCount(); i++) {
-				cursor.moveToPosition(i);
-				if ((cursor.getLong(cursor.getColumnIndex("_id"))) == findId) {
-					vehicle.setSelection(i);
-					break;
-				}
+		else
+			mVehicleID = getIntent().getLongExtra("idVehicle", 0);
+
+		// The vehicles (and the fueling being edited) are loaded in the
+		// background, the form is filled and can be saved once all of them
+		// arrive
+		save.setEnabled(false);
+		LoaderCallbacks<Cursor> loaderCallbacks = new LoaderCallbacks<Cursor>() {
+			private boolean mVehiclesLoaded;
+			private Cursor mEditFueling;
+			private boolean mFormFilled;
+
+			public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+				if (id == FUELING_LOADER)
+					return new FuelMonitorCursorLoader(AddFueling.this,
+							FuelMonitorCursorLoader.FUELING, mFuelingID);
+				return new FuelMonitorCursorLoader(AddFueling.this,
+						FuelMonitorCursorLoader.VEHICLES, 0);
 			}
 
-			try {
-				SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd");
-				date.parse(editFueling.getString(editFueling
-						.getColumnIndex("date")));
-				Calendar c = date.getCalendar();
-				mYear = c.get(Calendar.YEAR);
-				mMonth = c.get(Calendar.MONTH);
-				mDay = c.get(Calendar.DAY_OF_MONTH);
-
-			} catch (ParseException e) {
-				Log.e(TAG, "Error parsing date from database");
+			public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+				if (loader.getId() == FUELING_LOADER)
+					mEditFueling = data;
+				else {
+					vehicleAdapter.swapCursor(data);
+					mVehiclesLoaded = true;
+				}
+				if (!mFormFilled && mVehiclesLoaded
+						&& (!edit || mEditFueling != null)) {
+					mFormFilled = true;
+					fillForm();
+				}
+				save.setEnabled(mFormFilled);
 			}
 
-			fuelStation.setText(editFueling.getString(editFueling
-					.getColumnIndex("fuelStation")));
-			kms.setText(Integer.toString(editFueling.getInt(editFueling
-					.getColumnIndex("kmsAtFueling"))));
-			quantity.setText(Double.toString(editFueling.getDouble(editFueling
-					.getColumnIndex("quantity"))));
-			cost.setText(Float.toString(editFueling.getFloat(editFueling
-					.getColumnIndex("cost"))));
-			courseTypeCity.setChecked(editFueling.getInt(editFueling
-					.getColumnIndex("courseTypeCity")) == 1);
-			courseTypeRoad.setChecked(editFueling.getInt(editFueling
-					.getColumnIndex("courseTypeRoad")) == 1);
-			courseTypeFreeway.setChecked(editFueling.getInt(editFueling
-					.getColumnIndex("courseTypeFreeway")) == 1);
-			drivingStyle.setSelection(editFueling.getInt(editFueling
-					.getColumnIndex("drivingStyle")) - 1);
-		}
+			public void onLoaderReset(Loader<Cursor> loader) {
+				if (loader.getId() == FUELING_LOADER)
+					mEditFueling = null;
+				else
+					vehicleAdapter.swapCursor(null);
+				save.setEnabled(false);
+			}
 
-		else {
+			private void fillForm() {
+				long findId;
+				if (edit) {
+					Cursor editFueling = mEditFueling;
+					editFueling.moveToFirst();
+					findId = editFueling.getLong(editFueling
+							.getColumnIndex("idVehicle"));
+
+					try {
+						SimpleDateFormat date = new SimpleDateFormat(
+								"yyyy-MM-dd");
+						date.parse(editFueling.getString(editFueling
+								.getColumnIndex("date")));
+						Calendar c = date.getCalendar();
+						mYear = c.get(Calendar.YEAR);
+						mMonth = c.get(Calendar.MONTH);
+						mDay = c.get(Calendar.DAY_OF_MONTH);
+
+					} catch (ParseException e) {
+						Log.e(TAG, "Error parsing date from database");
+					}
 
-			// get the current date
-			final Calendar c = Calendar.getInstance();
-			mYear = c.get(Calendar.YEAR);
-			mMonth = c.get(Calendar.MONTH);
-			mDay = c.get(Calendar.DAY_OF_MONTH);
+					fuelStation.setText(editFueling.getString(editFueling
+							.getColumnIndex("fuelStation")));
+					kms.setText(Integer.toString(editFueling.getInt(editFueling
+							.getColumnIndex("kmsAtFueling"))));
+					quantity.setText(Double.toString(editFueling
+							.getDouble(editFueling.getColumnIndex("quantity"))));
+					cost.setText(Float.toString(editFueling.getFloat(editFueling
+							.getColumnIndex("cost"))));
+					courseTypeCity.setChecked(editFueling.getInt(editFueling
+							.getColumnIndex("courseTypeCity")) == 1);
+					courseTypeRoad.setChecked(editFueling.getInt(editFueling
+							.getColumnIndex("courseTypeRoad")) == 1);
+					courseTypeFreeway.setChecked(editFueling.getInt(editFueling
+							.getColumnIndex("courseTypeFreeway")) == 1);
+					drivingStyle.setSelection(editFueling.getInt(editFueling
+							.getColumnIndex("drivingStyle")) - 1);
+					updateDisplay();
+				} else if (mVehicleID > 0)
+					findId = mVehicleID;
+				else
+					// Default - Select previous vehicle
+					findId = FuelMonitorDbAdapter
+							.getLastFueledVehicleID(vehicleAdapter.getCursor());
 
-			mVehicleID = getIntent().getLongExtra("idVehicle", 0);
-			if (mVehicleID > 0) {
 				// This is needed in case one vehicle (in the middle) had been
 				// deleted
-				SimpleCursorAdapter adapter = (SimpleCursorAdapter) vehicle
-						.getAdapter();
-				Cursor cursor = adapter.getCursor();
-				for (int i = 0; i < adapter.getCount(); i++) {
-					cursor.moveToPosition(i);
-					if ((cursor.getLong(cursor.getColumnIndex("_id"))) == mVehicleID) {
-						vehicle.setSelection(i);
-						break;
-					}
-				}
-
-			} else {
-				// This is needed in case one vehicle (in the middle) had been
-				// deleted (Default - Select previous vehicle)
-				SimpleCursorAdapter adapter = (SimpleCursorAdapter) vehicle
-						.getAdapter();
-				Cursor cursor = adapter.getCursor();
-				int findInt = mDbHelper.getLastFuelingVehicleID();
-				for (int i = 0; i < adapter.getCount(); i++) {
-					cursor.moveToPosition(i);
-					if ((cursor.getLong(cursor.getColumnIndex("_id"))) == findInt) {
+				for (int i = 0; i < vehicleAdapter.getCount(); i++) {
+					if (vehicleAdapter.getItemId(i) == findId) {
 						vehicle.setSelection(i);
 						break;
 					}
 				}
 			}
-		}
+		};
+		getSupportLoaderManager().initLoader(VEHICLES_LOADER, null,
+				loaderCallbacks);
+		if (edit)
+			getSupportLoaderManager().initLoader(FUELING_LOADER, null,
+					loaderCallbacks);
 
 		// display the current date
 		updateDisplay();
@@ -234,11 +259,9 @@ public class AddFueling extends SherlockActivity {
 						&& !cost.getText().toString().equals("")
 						&& (courseTypeCity.isChecked()
 								|| courseTypeRoad.isChecked() || courseTypeFreeway
-									.isChecked())) {
-					long vehicleId = ((SimpleCursorAdapter) vehicle
-							.getAdapter()).getCursor().getLong(
-							((SimpleCursorAdapter) vehicle.getAdapter())
-									.getCursor().getColumnIndex("_id"));
+									.isChecked())
+						&& vehicle.getSelectedItemId() != AdapterView.INVALID_ROW_ID) {
+					long vehicleId = vehicle.getSelectedItemId();
 					if (Integer.parseInt(kms.getText().toString()) > mDbHelper
 							.getMinKms(vehicleId)) {
 						Calendar c = Calendar.getInstance();
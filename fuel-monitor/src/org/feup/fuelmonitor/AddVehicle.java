@@ -1,43 +1,42 @@
 package org.feup.fuelmonitor;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.Calendar;
 
 import android.content.Intent;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.Environment;
 import android.provider.MediaStore;
+import android.support.v4.app.LoaderManager.LoaderCallbacks;
+import android.support.v4.content.Loader;
+import android.support.v4.widget.SimpleCursorAdapter;
 import android.util.Log;
 import android.view.View;
+import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.CheckBox;
-import android.widget.SimpleCursorAdapter;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.actionbarsherlock.app.SherlockActivity;
+import com.actionbarsherlock.app.SherlockFragmentActivity;
 
 /**
  * A class for the adding vehicle activity
  * 
  */
-public class AddVehicle extends SherlockActivity {
+public class AddVehicle extends SherlockFragmentActivity {
 
 	private static final String TAG = "FuelMonitorAddVehicle";
+	private static final int MAKES_LOADER = 0;
+	private static final int FUEL_TYPES_LOADER = 1;
+	private static final int VEHICLE_LOADER = 2;
 	private FuelMonitorDbAdapter mDbHelper;
-	private static File mTempFile;
+	private String mPhotoRegistration; /* kept while the camera runs */
 	private boolean edit;
 	private long mVehicleID;
 
@@ -47,9 +46,11 @@ public class AddVehicle extends SherlockActivity {
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		if (savedInstanceState != null)
+			mPhotoRegistration = savedInstanceState
+					.getString("photoRegistration");
 		edit = getIntent().getBooleanExtra("edit", false);
 		mDbHelper = new FuelMonitorDbAdapter(this);
-		// mTempFile = null;
 		setContentView(R.layout.addvehicle);
 		final Spinner make = (Spinner) findViewById(R.id.addvehicle_brandSpinner);
 		final TextView model = (TextView) findViewById(R.id.addvehicle_modelText);
@@ -69,21 +70,13 @@ public class AddVehicle extends SherlockActivity {
 		for (int y = Calendar.getInstance().get(Calendar.YEAR); y >= 1900; y--)
 			yearAdapter.add(y);
 
-		Cursor makeCursor = mDbHelper.fetchMakes();
-		// TODO Use a CursorLoader (startManagingCursor is deprecated)
-		startManagingCursor(makeCursor);
+		final SimpleCursorAdapter makeAdapter = new SimpleCursorAdapter(this,
+				android.R.layout.simple_spinner_item, null,
+				new String[] { "name" }, new int[] { android.R.id.text1 }, 0);
 
-		SimpleCursorAdapter makeAdapter = new SimpleCursorAdapter(this,
-				android.R.layout.simple_spinner_item, makeCursor,
-				new String[] { "name" }, new int[] { android.R.id.text1 });
-
-		Cursor fuelTypeCursor = mDbHelper.fetchFuelingTypes();
-
-		startManagingCursor(fuelTypeCursor);
-
-		SimpleCursorAdapter fuelTypeAdapter = new SimpleCursorAdapter(this,
-				android.R.layout.simple_spinner_item, fuelTypeCursor,
-				new String[] { "name" }, new int[] { android.R.id.text1 });
+		final SimpleCursorAdapter fuelTypeAdapter = new SimpleCursorAdapter(
+				this, android.R.layout.simple_spinner_item, null,
+				new String[] { "name" }, new int[] { android.R.id.text1 }, 0);
 
 		fuelType.setAdapter(fuelTypeAdapter);
 
@@ -91,58 +84,120 @@ public class AddVehicle extends SherlockActivity {
 
 		year.setAdapter(yearAdapter);
 
-		if (edit) {
+		if (edit)
 			mVehicleID = getIntent().getLongExtra("vehicleID", 0);
-			Cursor editVehicle = mDbHelper.getVehicleByID(mVehicleID);
-			editVehicle.moveToFirst();
-			// This is needed in case one make (in the middle) had been
-			// deleted
-			SimpleCursorAdapter makeAdapterEdit = (SimpleCursorAdapter) make
-					.getAdapter();
-			Cursor makeCursorEdit = makeAdapterEdit.getCursor();
-			long findMakeId = editVehicle.getLong(editVehicle
-					.getColumnIndex("idMake"));
-			for (int i = 0; i < makeAdapterEdit.getCount(); i++) {
-				makeCursorEdit.moveToPosition(i);
-				if ((makeCursorEdit.getLong(makeCursorEdit
-						.getColumnIndex("_id"))) == findMakeId) {
-					make.setSelection(i);
+
+		// The makes, the fuel types and the vehicle being edited are loaded in
+		// the background, the form is filled and can be saved once all of them
+		// arrive
+		save.setEnabled(false);
+		LoaderCallbacks<Cursor> loaderCallbacks = new LoaderCallbacks<Cursor>() {
+			private boolean mMakesLoaded;
+			private boolean mFuelTypesLoaded;
+			private Cursor mEditVehicle;
+			private boolean mFormFilled;
+
+			public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+				switch (id) {
+				case MAKES_LOADER:
+					return new FuelMonitorCursorLoader(AddVehicle.this,
+							FuelMonitorCursorLoader.MAKES, 0);
+				case FUEL_TYPES_LOADER:
+					return new FuelMonitorCursorLoader(AddVehicle.this,
+							FuelMonitorCursorLoader.FUEL_TYPES, 0);
+				default:
+					return new FuelMonitorCursorLoader(AddVehicle.this,
+							FuelMonitorCursorLoader.VEHICLE, mVehicleID);
+				}
+			}
+
+			public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+				switch (loader.getId()) {
+				case MAKES_LOADER:
+					makeAdapter.swapCursor(data);
+					mMakesLoaded = true;
+					break;
+				case FUEL_TYPES_LOADER:
+					fuelTypeAdapter.swapCursor(data);
+					mFuelTypesLoaded = true;
 					break;
+				default:
+					mEditVehicle = data;
 				}
+				if (edit && !mFormFilled && mMakesLoaded && mFuelTypesLoaded
+						&& mEditVehicle != null) {
+					mFormFilled = true;
+					fillForm();
+				}
+				save.setEnabled(mMakesLoaded && mFuelTypesLoaded
+						&& (!edit || mFormFilled));
 			}
-			model.setText(editVehicle.getString(editVehicle
-					.getColumnIndex("model")));
-			// This is needed in case one fueltype (in the middle) had been
-			// deleted
-			SimpleCursorAdapter fuelTypeAdapterEdit = (SimpleCursorAdapter) fuelType
-					.getAdapter();
-			Cursor fuelTypeCursorEdit = fuelTypeAdapterEdit.getCursor();
-			long findFuelTypeId = editVehicle.getLong(editVehicle
-					.getColumnIndex("idFuelType"));
-			for (int i = 0; i < fuelTypeCursorEdit.getCount(); i++) {
-				fuelTypeCursorEdit.moveToPosition(i);
-				if ((fuelTypeCursorEdit.getLong(fuelTypeCursorEdit
-						.getColumnIndex("_id"))) == findFuelTypeId) {
-					fuelType.setSelection(i);
+
+			public void onLoaderReset(Loader<Cursor> loader) {
+				switch (loader.getId()) {
+				case MAKES_LOADER:
+					makeAdapter.swapCursor(null);
+					break;
+				case FUEL_TYPES_LOADER:
+					fuelTypeAdapter.swapCursor(null);
 					break;
+				default:
+					mEditVehicle = null;
 				}
+				save.setEnabled(false);
 			}
-			capacity.setText(Integer.toString(editVehicle.getInt(editVehicle
-					.getColumnIndex("fuelCapacity"))));
-			registration.setText(editVehicle.getString(editVehicle
-					.getColumnIndex("registration")));
-			year.setSelection(Calendar.getInstance().get(Calendar.YEAR)
-					- editVehicle.getInt(editVehicle.getColumnIndex("year")));
-			kms.setText(Integer.toString(editVehicle.getInt(editVehicle
-					.getColumnIndex("kms"))));
-		}
+
+			private void fillForm() {
+				Cursor editVehicle = mEditVehicle;
+				editVehicle.moveToFirst();
+				// This is needed in case one make (in the middle) had been
+				// deleted
+				long findMakeId = editVehicle.getLong(editVehicle
+						.getColumnIndex("idMake"));
+				for (int i = 0; i < makeAdapter.getCount(); i++) {
+					if (makeAdapter.getItemId(i) == findMakeId) {
+						make.setSelection(i);
+						break;
+					}
+				}
+				model.setText(editVehicle.getString(editVehicle
+						.getColumnIndex("model")));
+				// This is needed in case one fueltype (in the middle) had been
+				// deleted
+				long findFuelTypeId = editVehicle.getLong(editVehicle
+						.getColumnIndex("idFuelType"));
+				for (int i = 0; i < fuelTypeAdapter.getCount(); i++) {
+					if (fuelTypeAdapter.getItemId(i) == findFuelTypeId) {
+						fuelType.setSelection(i);
+						break;
+					}
+				}
+				capacity.setText(Integer.toString(editVehicle
+						.getInt(editVehicle.getColumnIndex("fuelCapacity"))));
+				registration.setText(editVehicle.getString(editVehicle
+						.getColumnIndex("registration")));
+				year.setSelection(Calendar.getInstance().get(Calendar.YEAR)
+						- editVehicle.getInt(editVehicle.getColumnIndex("year")));
+				kms.setText(Integer.toString(editVehicle.getInt(editVehicle
+						.getColumnIndex("kms"))));
+			}
+		};
+		getSupportLoaderManager().initLoader(MAKES_LOADER, null,
+				loaderCallbacks);
+		getSupportLoaderManager().initLoader(FUEL_TYPES_LOADER, null,
+				loaderCallbacks);
+		if (edit)
+			getSupportLoaderManager().initLoader(VEHICLE_LOADER, null,
+					loaderCallbacks);
 
 		save.setOnClickListener(new View.OnClickListener() {
 			public void onClick(View v) {
 				if (!model.getText().toString().equals("")
 						&& !registration.getText().toString().equals("")
 						&& !capacity.getText().toString().equals("")
-						&& !kms.getText().toString().equals("")) {
+						&& !kms.getText().toString().equals("")
+						&& make.getSelectedItemId() != AdapterView.INVALID_ROW_ID
+						&& fuelType.getSelectedItemId() != AdapterView.INVALID_ROW_ID) {
 					long queryRetCode;
 					if (edit) {
 						String oldReg = mDbHelper
@@ -150,25 +205,9 @@ public class AddVehicle extends SherlockActivity {
 						queryRetCode = mDbHelper
 								.editVehicle(
 										mVehicleID,
-										((SimpleCursorAdapter) make
-												.getAdapter())
-												.getCursor()
-												.getLong(
-														((SimpleCursorAdapter) make
-																.getAdapter())
-																.getCursor()
-																.getColumnIndex(
-																		"_id")),
+										make.getSelectedItemId(),
 										model.getText().toString(),
-										((SimpleCursorAdapter) fuelType
-												.getAdapter())
-												.getCursor()
-												.getLong(
-														((SimpleCursorAdapter) fuelType
-																.getAdapter())
-																.getCursor()
-																.getColumnIndex(
-																		"_id")),
+										fuelType.getSelectedItemId(),
 										Short.parseShort(capacity.getText()
 												.toString()), registration
 												.getText().toString(), Short
@@ -179,37 +218,19 @@ public class AddVehicle extends SherlockActivity {
 														.toString()));
 						// change photo file names
 						if (queryRetCode > 0) {
-							File directory = new File(Environment
-									.getExternalStorageDirectory(),
-									"fuelmonitor/");
 							String newReg = mDbHelper
 									.getRegistrationByID(mVehicleID);
-							File oldimgFile = new File(directory,
-									(oldReg + ".jpg"));
-							File oldthumbFile = new File(directory,
-									(oldReg + "t.jpg"));
-							File newimgFile = new File(directory,
-									(newReg + ".jpg"));
-							File newthumbFile = new File(directory,
-									(newReg + "t.jpg"));
-							oldimgFile.renameTo(newimgFile);
-							oldthumbFile.renameTo(newthumbFile);
+							VehiclePhotos.rename(oldReg, newReg);
+							ThumbnailCache thumbnails = ThumbnailCache
+									.getInstance(AddVehicle.this);
+							thumbnails.invalidate(oldReg);
+							thumbnails.invalidate(newReg);
 						}
 					} else {
 						queryRetCode = mDbHelper.addVehicle(
-								((SimpleCursorAdapter) make.getAdapter())
-										.getCursor().getLong(
-												((SimpleCursorAdapter) make
-														.getAdapter())
-														.getCursor()
-														.getColumnIndex("_id")),
+								make.getSelectedItemId(),
 								model.getText().toString(),
-								((SimpleCursorAdapter) fuelType.getAdapter())
-										.getCursor().getLong(
-												((SimpleCursorAdapter) fuelType
-														.getAdapter())
-														.getCursor()
-														.getColumnIndex("_id")),
+								fuelType.getSelectedItemId(),
 								Short.parseShort(capacity.getText().toString()),
 								registration.getText().toString(), Short
 										.parseShort(year.getSelectedItem()
@@ -218,12 +239,11 @@ public class AddVehicle extends SherlockActivity {
 					}
 					if (queryRetCode > 0) {
 						if (photo.isChecked()) {
-							File directory = new File(Environment
-									.getExternalStorageDirectory(),
-									"fuelmonitor/");
-							directory.mkdirs();
-							File file = new File(directory, (registration
-									.getText().toString() + ".jpg"));
+							mPhotoRegistration = registration.getText()
+									.toString();
+							VehiclePhotos.getDirectory().mkdirs();
+							File file = VehiclePhotos
+									.getPhotoFile(mPhotoRegistration);
 							file.delete();
 							try {
 								file.createNewFile();
@@ -234,8 +254,6 @@ public class AddVehicle extends SherlockActivity {
 									android.provider.MediaStore.ACTION_IMAGE_CAPTURE);
 							i.putExtra(MediaStore.EXTRA_OUTPUT,
 									Uri.fromFile(file));
-							mTempFile = new File(directory, (registration
-									.getText().toString()));
 							startActivityForResult(i, 1);
 						} else
 							finish();
@@ -263,6 +281,16 @@ public class AddVehicle extends SherlockActivity {
 
 	}
 
+	/**
+	 * Keeps the registration of the photo being taken, the activity may be
+	 * destroyed while the camera runs
+	 */
+	@Override
+	protected void onSaveInstanceState(Bundle outState) {
+		super.onSaveInstanceState(outState);
+		outState.putString("photoRegistration", mPhotoRegistration);
+	}
+
 	/**
 	 * Function to handle the activity result value
 	 */
@@ -270,36 +298,36 @@ public class AddVehicle extends SherlockActivity {
 	protected void onActivityResult(int requestCode, int resultCode, Intent data) {
 		super.onActivityResult(requestCode, resultCode, data);
 		if (requestCode == 1) {
-			File imgFile = new File(mTempFile.getPath() + ".jpg");
-			if (resultCode == RESULT_CANCELED)
-				imgFile.delete();
-			else if (resultCode == RESULT_OK) {
-				Bitmap bmp = BitmapFactory
-						.decodeFile(imgFile.getAbsolutePath());
-				File thumbfile = new File(mTempFile.getPath() + "t.jpg");
-				OutputStream out = null;
-				try {
-					out = new BufferedOutputStream(new FileOutputStream(
-							thumbfile));
-				} catch (FileNotFoundException e) {
-					Log.e(TAG, "Error creating thumbnail file");
-				} finally {
-					if (out != null) {
-						try {
-							Bitmap thumb = Bitmap.createScaledBitmap(bmp,
-									bmp.getWidth() / 10, bmp.getHeight() / 10,
-									false);
-							thumb.compress(CompressFormat.JPEG, 60, out);
-							out.close();
-						} catch (IOException e) {
-							Log.e(TAG, "Error writing thumbnail file");
-						}
-					}
-				}
+			if (resultCode == RESULT_CANCELED) {
+				VehiclePhotos.getPhotoFile(mPhotoRegistration).delete();
+				finish();
+			} else if (resultCode == RESULT_OK)
+				new CreateThumbnailTask().execute(mPhotoRegistration);
+			else
+				finish();
+		}
+	}
 
-			}
-			finish();
+	/**
+	 * Writes the preview and the thumbnail of the new photo in the
+	 * background and closes the activity once they are written
+	 */
+	private class CreateThumbnailTask extends AsyncTask<String, Void, Boolean> {
+		private String mRegistration;
+
+		@Override
+		protected Boolean doInBackground(String... registration) {
+			mRegistration = registration[0];
+			return VehiclePhotos.createScaledCopies(mRegistration);
+		}
 
+		@Override
+		protected void onPostExecute(Boolean written) {
+			if (!written)
+				Log.e(TAG, "Error creating thumbnail file");
+			ThumbnailCache.getInstance(AddVehicle.this).invalidate(
+					mRegistration);
+			finish();
 		}
 	}
 
@@ -0,0 +1,158 @@
+package org.feup.fuelmonitor;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * DbBenchmark - Measures the calls per second of the adapter's single value
+ * getters, which run compiled statements, against the cursor queries they
+ * used to run. Takes a while, must not be run on the main thread.
+ */
+class DbBenchmark {
+
+	private static final String TAG = "FuelMonitorDbBenchmark";
+	private static final int WARMUP_CALLS = 200;
+
+	/**
+	 * A call being measured
+	 */
+	private static abstract class Call {
+		abstract void run();
+	}
+
+	/**
+	 * Measures every getter the statement cache replaced
+	 *
+	 * @param db
+	 *            an open adapter
+	 * @param vehicleId
+	 *            the vehicle the queries are about, it should have fuelings
+	 * @param calls
+	 *            how many times each query is run
+	 * @return a report with a line per getter
+	 */
+	static String runScalarQueries(final FuelMonitorDbAdapter db,
+			final long vehicleId, int calls) {
+		final SQLiteDatabase sqlite = db.getDatabase();
+		final String[] args = new String[] { String.valueOf(vehicleId) };
+		StringBuilder report = new StringBuilder();
+
+		report.append(compare("getNumVehicles", calls, new Call() {
+			void run() {
+				Cursor c = sqlite.query("Vehicle",
+						new String[] { "COUNT(*)" }, null, null, null, null,
+						null);
+				c.moveToFirst();
+				c.getInt(0);
+				c.close();
+			}
+		}, new Call() {
+			void run() {
+				db.getNumVehicles();
+			}
+		}));
+		report.append(compare("getRegistrationByID", calls, new Call() {
+			void run() {
+				readSingleValue(sqlite.query("Vehicle",
+						new String[] { "registration" }, "_id=?", args, null,
+						null, null));
+			}
+		}, new Call() {
+			void run() {
+				db.getRegistrationByID(vehicleId);
+			}
+		}));
+		report.append(compare("getMinKms", calls, new Call() {
+			void run() {
+				readSingleValue(sqlite.query("Vehicle",
+						new String[] { "kms" }, "_id=?", args, null, null,
+						null));
+			}
+		}, new Call() {
+			void run() {
+				db.getMinKms(vehicleId);
+			}
+		}));
+		report.append(compare("getNumFuelings", calls, new Call() {
+			void run() {
+				readSingleValue(sqlite.query("VehicleStats",
+						new String[] { "numFuelings" }, "idVehicle=?", args,
+						null, null, null));
+			}
+		}, new Call() {
+			void run() {
+				db.getNumFuelings(vehicleId);
+			}
+		}));
+		report.append(compare("getMaxKms", calls, new Call() {
+			void run() {
+				readSingleValue(sqlite.query("VehicleStats",
+						new String[] { "maxKms" }, "idVehicle=?", args, null,
+						null, null));
+			}
+		}, new Call() {
+			void run() {
+				db.getMaxKms(vehicleId);
+			}
+		}));
+		report.append(compare("getTotalLitres", calls, new Call() {
+			void run() {
+				readSingleValue(sqlite.query("VehicleStats",
+						new String[] { "totalLitres" }, "idVehicle=?", args,
+						null, null, null));
+			}
+		}, new Call() {
+			void run() {
+				db.getTotalLitres(vehicleId);
+			}
+		}));
+		report.append(compare("getTotalCost", calls, new Call() {
+			void run() {
+				readSingleValue(sqlite.query("VehicleStats",
+						new String[] { "totalCost" }, "idVehicle=?", args,
+						null, null, null));
+			}
+		}, new Call() {
+			void run() {
+				db.getTotalCost(vehicleId);
+			}
+		}));
+		return report.toString();
+	}
+
+	/**
+	 * Reads the first column of the first row, as the getters used to
+	 */
+	private static void readSingleValue(Cursor c) {
+		if (c.moveToFirst())
+			c.getString(0);
+		c.close();
+	}
+
+	/**
+	 * Runs both versions of a getter and logs their calls per second
+	 *
+	 * @return the report line
+	 */
+	private static String compare(String name, int calls, Call cursor,
+			Call statement) {
+		double before = callsPerSecond(cursor, calls);
+		double after = callsPerSecond(statement, calls);
+		String line = String.format(
+				"%s: cursor %.0f calls/s, statement %.0f calls/s (%.1fx)\n",
+				name, before, after, after / before);
+		Log.i(TAG, line.trim());
+		return line;
+	}
+
+	private static double callsPerSecond(Call call, int calls) {
+		for (int i = 0; i < WARMUP_CALLS; i++)
+			call.run();
+		long start = System.nanoTime();
+		for (int i = 0; i < calls; i++)
+			call.run();
+		long elapsed = System.nanoTime() - start;
+		return calls * 1e9 / Math.max(elapsed, 1);
+	}
+}
@@ -0,0 +1,455 @@
+package org.feup.fuelmonitor;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.feup.fuelmonitor.analytics.ConsumptionAnalytics;
+import org.feup.fuelmonitor.analytics.FuelingSeries;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * DbBenchmarkSuite - Times every public query of FuelMonitorDbAdapter, and
+ * the queries each screen runs when it opens, on a generated fleet in a
+ * database file of its own. The results are written as a TSV file to the
+ * fuelmonitor directory so they can be compared from release to release.
+ * Takes a while, must not be run on the main thread.
+ */
+class DbBenchmarkSuite {
+
+	private static final String TAG = "FuelMonitorDbBenchmarkSuite";
+	private static final String DATABASE_NAME = "benchmark-suite";
+	private static final int SAMPLE_VEHICLES = 20;
+	private static final int ROUNDS = 3;
+
+	/**
+	 * One of the timed operations
+	 */
+	private static abstract class Query {
+		final String mName;
+
+		Query(String name) {
+			mName = name;
+		}
+
+		/**
+		 * @return the number of rows read
+		 */
+		abstract int run(FuelMonitorDbAdapter db, long vehicleId,
+				long fuelingId);
+	}
+
+	private final Context mCtx;
+	private final int mVehicles;
+	private final int mFuelingsPerVehicle;
+
+	/**
+	 * @param ctx
+	 *            the Context within which to work
+	 * @param vehicles
+	 *            the number of vehicles of the fleet
+	 * @param fuelingsPerVehicle
+	 *            the number of fuelings of each vehicle
+	 */
+	DbBenchmarkSuite(Context ctx, int vehicles, int fuelingsPerVehicle) {
+		mCtx = ctx;
+		mVehicles = vehicles;
+		mFuelingsPerVehicle = fuelingsPerVehicle;
+	}
+
+	/**
+	 * Generates the fleet, times every query and writes the results
+	 *
+	 * @param listener
+	 *            told about the progress of the fleet generation, may be null
+	 * @return the file the results were written to
+	 * @throws IOException
+	 *             if the results can't be written
+	 */
+	File run(FuelMonitorDbAdapter.ImportProgressListener listener)
+			throws IOException {
+		mCtx.deleteDatabase(DATABASE_NAME);
+		FuelMonitorDbAdapter db = FuelMonitorDbAdapter.openPrivate(mCtx,
+				DATABASE_NAME, StorageProfile.WAL);
+		try {
+			long start = System.nanoTime();
+			FleetDataGenerator generator = new FleetDataGenerator(1);
+			long[] vehicleIds = generator.createVehicles(db, mVehicles);
+			db.importFuelings(generator.fuelings(mFuelingsPerVehicle), 1000,
+					listener);
+			double generateSeconds = (System.nanoTime() - start) / 1e9;
+
+			// evenly spread vehicles, with one of their fuelings each
+			int samples = Math.min(SAMPLE_VEHICLES, vehicleIds.length);
+			long[] sampleVehicles = new long[samples];
+			long[] sampleFuelings = new long[samples];
+			for (int i = 0; i < samples; i++) {
+				sampleVehicles[i] = vehicleIds[i * vehicleIds.length / samples];
+				Cursor page = db.fetchFuelingPage(sampleVehicles[i],
+						Integer.MIN_VALUE, Integer.MAX_VALUE, 0, 1);
+				sampleFuelings[i] = page.moveToFirst() ? page.getLong(0) : 0;
+				page.close();
+			}
+
+			File file = new File(VehiclePhotos.getDirectory(), "benchmark-"
+					+ new SimpleDateFormat("yyyyMMdd-HHmmss")
+							.format(new Date()) + ".tsv");
+			VehiclePhotos.getDirectory().mkdirs();
+			Writer out = new BufferedWriter(new FileWriter(file));
+			try {
+				out.write("# Fuel Monitor database benchmark\n");
+				out.write(String.format(
+						"# device %s, sdk %d, %d vehicles x %d fuelings,"
+								+ " generated in %.1f s\n", Build.MODEL,
+						Build.VERSION.SDK_INT, mVehicles, mFuelingsPerVehicle,
+						generateSeconds));
+				out.write("query\tcalls\tmedian_ms\tp90_ms\tmax_ms\trows\n");
+				for (Query query : getQueries())
+					out.write(time(db, query, sampleVehicles, sampleFuelings));
+			} finally {
+				out.close();
+			}
+			Log.i(TAG, "Results written to " + file.getAbsolutePath());
+			return file;
+		} finally {
+			db.close();
+			mCtx.deleteDatabase(DATABASE_NAME);
+		}
+	}
+
+	/**
+	 * Runs a query for every sample vehicle, ROUNDS times
+	 *
+	 * @return the result line
+	 */
+	private static String time(FuelMonitorDbAdapter db, Query query,
+			long[] vehicles, long[] fuelings) {
+		// once untimed, so every query starts with a warm cache
+		query.run(db, vehicles[0], fuelings[0]);
+		long[] nanos = new long[vehicles.length * ROUNDS];
+		long rows = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			for (int i = 0; i < vehicles.length; i++) {
+				long start = System.nanoTime();
+				rows += query.run(db, vehicles[i], fuelings[i]);
+				nanos[round * vehicles.length + i] = System.nanoTime() - start;
+			}
+		}
+		Arrays.sort(nanos);
+		String line = String.format("%s\t%d\t%.3f\t%.3f\t%.3f\t%d\n",
+				query.mName, nanos.length, nanos[nanos.length / 2] / 1e6,
+				nanos[nanos.length * 9 / 10] / 1e6,
+				nanos[nanos.length - 1] / 1e6, rows / nanos.length);
+		Log.i(TAG, line.trim());
+		return line;
+	}
+
+	/**
+	 * Reads every row of a cursor, as a list would, and closes it
+	 *
+	 * @return the number of rows
+	 */
+	private static int drain(Cursor cursor) {
+		int rows = 0;
+		int columns = cursor.getColumnCount();
+		while (cursor.moveToNext()) {
+			for (int i = 0; i < columns; i++)
+				cursor.getString(i);
+			rows++;
+		}
+		cursor.close();
+		return rows;
+	}
+
+	private static int yearStart(int year) {
+		return FuelMonitorDbAdapter.toEpochDay(year, 1, 1);
+	}
+
+	private static List<Query> getQueries() {
+		List<Query> queries = new ArrayList<Query>();
+
+		// The queries each screen runs when it opens
+		queries.add(new Query("screen VehicleList") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return drain(db.fetchVehicles());
+			}
+		});
+		queries.add(new Query("screen FuelingList") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return drain(db.fetchFuelingRowsPage(v, Integer.MIN_VALUE, 0,
+						FuelingPageLoader.PAGE_SIZE))
+						+ drain(db.fetchVehicleStats(v));
+			}
+		});
+		queries.add(new Query("screen Stats") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return drain(db.fetchVehicles())
+						+ drain(db.fetchConsumptionByPeriod(v, yearStart(2008),
+								yearStart(2009),
+								FuelMonitorDbAdapter.BUCKET_MONTH));
+			}
+		});
+		queries.add(new Query("screen AddFueling edit") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return drain(db.fetchVehicles()) + drain(db.getFuelingByID(f));
+			}
+		});
+		queries.add(new Query("screen AddVehicle edit") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return drain(db.fetchMakes()) + drain(db.fetchFuelingTypes())
+						+ drain(db.getVehicleByID(v));
+			}
+		});
+
+		// Every public query of the adapter
+		queries.add(new Query("fetchFuelingTypes") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return drain(db.fetchFuelingTypes());
+			}
+		});
+		queries.add(new Query("fetchMakes") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return drain(db.fetchMakes());
+			}
+		});
+		queries.add(new Query("fetchVehicles") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return drain(db.fetchVehicles());
+			}
+		});
+		queries.add(new Query("fetchVehicleStats") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return drain(db.fetchVehicleStats(v));
+			}
+		});
+		queries.add(new Query("getVehicleByID") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return drain(db.getVehicleByID(v));
+			}
+		});
+		queries.add(new Query("getFuelingByID") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return drain(db.getFuelingByID(f));
+			}
+		});
+		queries.add(new Query("getRegistrationByID") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				db.getRegistrationByID(v);
+				return 1;
+			}
+		});
+		queries.add(new Query("getNumVehicles") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				db.getNumVehicles();
+				return 1;
+			}
+		});
+		queries.add(new Query("getNumFuelings") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				db.getNumFuelings(v);
+				return 1;
+			}
+		});
+		queries.add(new Query("getMinKms") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				db.getMinKms(v);
+				return 1;
+			}
+		});
+		queries.add(new Query("getMaxKms") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				db.getMaxKms(v);
+				return 1;
+			}
+		});
+		queries.add(new Query("fetchFuelingsByVehicleID") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return drain(db.fetchFuelingsByVehicleID(v));
+			}
+		});
+		queries.add(new Query("fetchFuelingRowsByVehicleID") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return drain(db.fetchFuelingRowsByVehicleID(v));
+			}
+		});
+		queries.add(new Query("fetchFuelingRowsPage") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return drain(db.fetchFuelingRowsPage(v, Integer.MIN_VALUE, 0,
+						FuelingPageLoader.PAGE_SIZE));
+			}
+		});
+		queries.add(new Query("fetchConsumptionPageBefore") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return drain(db.fetchConsumptionPageBefore(v, Integer.MAX_VALUE,
+						Long.MAX_VALUE, FuelingConsumptionSource.PAGE_SIZE));
+			}
+		});
+		queries.add(new Query("getFuelingCourseTypeCity") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				db.getFuelingCourseTypeCity(f);
+				return 1;
+			}
+		});
+		queries.add(new Query("getFuelingCourseTypeRoad") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				db.getFuelingCourseTypeRoad(f);
+				return 1;
+			}
+		});
+		queries.add(new Query("getFuelingCourseTypeFreeway") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				db.getFuelingCourseTypeFreeway(f);
+				return 1;
+			}
+		});
+		queries.add(new Query("getAverageFuelConsumptionByVehicleID") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				db.getAverageFuelConsumptionByVehicleID(v);
+				return 1;
+			}
+		});
+		queries.add(new Query("getPreviousKms") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				db.getPreviousKms(f, (int) v);
+				return 1;
+			}
+		});
+		queries.add(new Query("getAverageFuelConsumptionByFuelingID") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				db.getAverageFuelConsumptionByFuelingID(f);
+				return 1;
+			}
+		});
+		queries.add(new Query("getAverageFuelConsumptionByDate") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				db.getAverageFuelConsumptionByDate(v, 6, 2008);
+				return 1;
+			}
+		});
+		queries.add(new Query("fetchConsumptionByPeriod month") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return drain(db.fetchConsumptionByPeriod(v, Integer.MIN_VALUE,
+						Integer.MAX_VALUE, FuelMonitorDbAdapter.BUCKET_MONTH));
+			}
+		});
+		queries.add(new Query("fetchConsumptionByPeriod year") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return drain(db.fetchConsumptionByPeriod(v, Integer.MIN_VALUE,
+						Integer.MAX_VALUE, FuelMonitorDbAdapter.BUCKET_YEAR));
+			}
+		});
+		queries.add(new Query("fetchConsumptionByVehiclesAndPeriod") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				// the sample vehicle and the five created after it
+				return drain(db.fetchConsumptionByVehiclesAndPeriod(new long[] {
+						v, v + 1, v + 2, v + 3, v + 4, v + 5 }, yearStart(2008),
+						yearStart(2009), FuelMonitorDbAdapter.BUCKET_MONTH));
+			}
+		});
+		queries.add(new Query("fetchCourseTypesByPeriod") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return drain(db.fetchCourseTypesByPeriod(v, yearStart(2008),
+						yearStart(2009), FuelMonitorDbAdapter.BUCKET_MONTH));
+			}
+		});
+		queries.add(new Query("fetchFuelingsByDayRange") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return drain(db.fetchFuelingsByDayRange(v, yearStart(2008),
+						yearStart(2009)));
+			}
+		});
+		queries.add(new Query("fetchFuelingPage") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return drain(db.fetchFuelingPage(v, Integer.MIN_VALUE,
+						Integer.MAX_VALUE, 0, 250));
+			}
+		});
+		queries.add(new Query("fetchVehiclePage") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return drain(db.fetchVehiclePage(0, 0, 250));
+			}
+		});
+		queries.add(new Query("loadFuelingSeries") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				return db.loadFuelingSeries(v).size();
+			}
+		});
+		queries.add(new Query("loadFuelingSeries+analytics") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				FuelingSeries series = db.loadFuelingSeries(v);
+				ConsumptionAnalytics.totals(series);
+				ConsumptionAnalytics.rollingConsumption(series, 5);
+				ConsumptionAnalytics.byMonth(series,
+						ConsumptionAnalytics.toMonth(2005, 1), 12 * 10);
+				ConsumptionAnalytics.byDrivingStyle(series);
+				return series.size();
+			}
+		});
+		queries.add(new Query("getTotalKms") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				db.getTotalKms(v);
+				return 1;
+			}
+		});
+		queries.add(new Query("getTotalLitres") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				db.getTotalLitres(v);
+				return 1;
+			}
+		});
+		queries.add(new Query("getTotalCost") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				db.getTotalCost(v);
+				return 1;
+			}
+		});
+		queries.add(new Query("getLastFuelingVehicleID") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				db.getLastFuelingVehicleID();
+				return 1;
+			}
+		});
+
+		// Writes, undone so every round sees the same data
+		queries.add(new Query("addFueling+deleteFueling") {
+			int run(FuelMonitorDbAdapter db, long v, long f) {
+				long id = db.addFueling("2004-06-01", 1, "Benchmark", 40, 60,
+						1, 0, 0, 2, v);
+				db.deleteFueling(id);
+				return 0;
+			}
+		});
+		return queries;
+	}
+
+	/**
+	 * Runs DbBenchmark.runScalarQueries on a small generated fleet
+	 *
+	 * @return the report
+	 */
+	static String runScalarQueries(Context ctx) {
+		ctx.deleteDatabase(DATABASE_NAME);
+		FuelMonitorDbAdapter db = FuelMonitorDbAdapter.openPrivate(ctx,
+				DATABASE_NAME, StorageProfile.WAL);
+		try {
+			FleetDataGenerator generator = new FleetDataGenerator(1);
+			long[] vehicleIds = generator.createVehicles(db, 10);
+			db.importFuelings(generator.fuelings(200), 1000, null);
+			return DbBenchmark.runScalarQueries(db, vehicleIds[0], 5000);
+		} finally {
+			db.close();
+			ctx.deleteDatabase(DATABASE_NAME);
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package org.feup.fuelmonitor;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
+import android.widget.TextView;
+
+import com.actionbarsherlock.app.SherlockActivity;
+
+/**
+ * DebugActivity - Runs the database benchmarks on the device and shows their
+ * results, and the query timings recorded by QueryTracer
+ */
+public class DebugActivity extends SherlockActivity {
+
+	private static final String TAG = "FuelMonitorDebugActivity";
+
+	private Button[] mButtons;
+	private TextView mOutput;
+
+	/**
+	 * A benchmark run in the background, with the buttons disabled meanwhile
+	 */
+	private abstract class BenchmarkTask extends
+			AsyncTask<Void, String, String> {
+
+		@Override
+		protected void onPreExecute() {
+			setButtonsEnabled(false);
+			mOutput.setText(R.string.debug_running);
+		}
+
+		@Override
+		protected void onProgressUpdate(String... values) {
+			mOutput.setText(values[0]);
+		}
+
+		@Override
+		protected void onPostExecute(String result) {
+			mOutput.setText(result);
+			setButtonsEnabled(true);
+		}
+	}
+
+	/**
+	 * Function that is called when the activity is created.
+	 */
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.debug);
+		mOutput = (TextView) findViewById(R.id.debug_output);
+
+		Button suiteSmall = (Button) findViewById(R.id.debug_suiteSmallButton);
+		Button suiteLarge = (Button) findViewById(R.id.debug_suiteLargeButton);
+		Button statements = (Button) findViewById(R.id.debug_statementsButton);
+		Button storageProfiles = (Button) findViewById(R.id.debug_storageProfilesButton);
+		Button traceDump = (Button) findViewById(R.id.debug_traceDumpButton);
+		Button traceReset = (Button) findViewById(R.id.debug_traceResetButton);
+		Button rebuildStats = (Button) findViewById(R.id.debug_rebuildStatsButton);
+		mButtons = new Button[] { suiteSmall, suiteLarge, statements,
+				storageProfiles, traceDump, traceReset, rebuildStats };
+
+		CheckBox trace = (CheckBox) findViewById(R.id.debug_traceCheckBox);
+		trace.setChecked(QueryTracer.isEnabled());
+		trace.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+			public void onCheckedChanged(CompoundButton buttonView,
+					boolean isChecked) {
+				QueryTracer.setEnabled(getApplicationContext(), isChecked);
+			}
+		});
+		traceDump.setOnClickListener(new View.OnClickListener() {
+			public void onClick(View v) {
+				new BenchmarkTask() {
+					@Override
+					protected String doInBackground(Void... params) {
+						try {
+							return getString(R.string.debug_suite_done,
+									dumpTrace().getAbsolutePath());
+						} catch (IOException e) {
+							Log.e(TAG, "Error writing the query timings", e);
+							return getString(R.string.export_error_toast);
+						}
+					}
+				}.execute();
+			}
+		});
+		traceReset.setOnClickListener(new View.OnClickListener() {
+			public void onClick(View v) {
+				QueryTracer.reset();
+				showTrace();
+			}
+		});
+
+		rebuildStats.setOnClickListener(new View.OnClickListener() {
+			public void onClick(View v) {
+				new BenchmarkTask() {
+					@Override
+					protected String doInBackground(Void... params) {
+						// the totals are kept by triggers, this repairs them
+						// if they ever drift from the fuelings
+						FuelMonitorDbAdapter dbHelper = new FuelMonitorDbAdapter(
+								getApplicationContext()).open();
+						try {
+							dbHelper.rebuildVehicleStats();
+						} finally {
+							dbHelper.close();
+						}
+						return getString(R.string.debug_rebuild_stats_done);
+					}
+				}.execute();
+			}
+		});
+
+		suiteSmall.setOnClickListener(new View.OnClickListener() {
+			public void onClick(View v) {
+				runSuite(50, 500);
+			}
+		});
+		suiteLarge.setOnClickListener(new View.OnClickListener() {
+			public void onClick(View v) {
+				runSuite(500, 5000);
+			}
+		});
+		statements.setOnClickListener(new View.OnClickListener() {
+			public void onClick(View v) {
+				new BenchmarkTask() {
+					@Override
+					protected String doInBackground(Void... params) {
+						return DbBenchmarkSuite
+								.runScalarQueries(getApplicationContext());
+					}
+				}.execute();
+			}
+		});
+		storageProfiles.setOnClickListener(new View.OnClickListener() {
+			public void onClick(View v) {
+				new BenchmarkTask() {
+					@Override
+					protected String doInBackground(Void... params) {
+						return StorageProfileBenchmark.run(
+								getApplicationContext(), 20, 500);
+					}
+				}.execute();
+			}
+		});
+	}
+
+	/**
+	 * Function that is called when the activity comes to the foreground.
+	 * Shows the query timings recorded so far
+	 */
+	@Override
+	protected void onResume() {
+		super.onResume();
+		if (mButtons[0].isEnabled())
+			showTrace();
+	}
+
+	private void showTrace() {
+		String summary = QueryTracer.getSummary();
+		if (summary.length() == 0)
+			mOutput.setText(R.string.debug_trace_empty);
+		else
+			mOutput.setText(summary);
+	}
+
+	/**
+	 * Writes the query timings to the fuelmonitor directory
+	 *
+	 * @return the file written
+	 */
+	private static File dumpTrace() throws IOException {
+		File directory = VehiclePhotos.getDirectory();
+		directory.mkdirs();
+		File file = new File(directory, "trace-"
+				+ new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date())
+				+ ".tsv");
+		Writer out = new BufferedWriter(new FileWriter(file));
+		try {
+			QueryTracer.dump(out);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private void runSuite(final int vehicles, final int fuelingsPerVehicle) {
+		new BenchmarkTask() {
+			@Override
+			protected String doInBackground(Void... params) {
+				DbBenchmarkSuite suite = new DbBenchmarkSuite(
+						getApplicationContext(), vehicles, fuelingsPerVehicle);
+				try {
+					File file = suite
+							.run(new FuelMonitorDbAdapter.ImportProgressListener() {
+								public void onProgress(int imported, int failed) {
+									publishProgress(getString(
+											R.string.debug_generating,
+											imported));
+								}
+							});
+					return getString(R.string.debug_suite_done,
+							file.getAbsolutePath());
+				} catch (IOException e) {
+					Log.e(TAG, "Error writing benchmark results", e);
+					return getString(R.string.export_error_toast);
+				}
+			}
+		}.execute();
+	}
+
+	private void setButtonsEnabled(boolean enabled) {
+		for (Button button : mButtons)
+			button.setEnabled(enabled);
+	}
+}
@@ -0,0 +1,67 @@
+package org.feup.fuelmonitor;
+
+import java.io.IOException;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Environment;
+import android.util.Log;
+import android.widget.Toast;
+
+/**
+ * ExportTask - Exports the vehicles and the fuelings in the background and
+ * tells the user where they were written
+ */
+public class ExportTask extends AsyncTask<Void, Void, Integer> {
+
+	private static final String TAG = "FuelMonitorExportTask";
+
+	private final Context mCtx;
+	private final char mSeparator;
+	private final long mVehicleId;
+
+	/**
+	 * @param ctx
+	 *            the context within which to work
+	 * @param separator
+	 *            FuelMonitorExporter.CSV or FuelMonitorExporter.TSV
+	 * @param vehicleId
+	 *            the id of the vehicle to export, or 0 for every vehicle
+	 */
+	public ExportTask(Context ctx, char separator, long vehicleId) {
+		mCtx = ctx.getApplicationContext();
+		mSeparator = separator;
+		mVehicleId = vehicleId;
+	}
+
+	/**
+	 * @return the number of fuelings exported, or -1 on error
+	 */
+	@Override
+	protected Integer doInBackground(Void... params) {
+		if (!Environment.MEDIA_MOUNTED.equals(Environment
+				.getExternalStorageState()))
+			return -1;
+		FuelMonitorDbAdapter dbHelper = new FuelMonitorDbAdapter(mCtx).open();
+		try {
+			return new FuelMonitorExporter(dbHelper, mSeparator)
+					.exportToStorage(mVehicleId, Integer.MIN_VALUE,
+							Integer.MAX_VALUE);
+		} catch (IOException e) {
+			Log.e(TAG, "Error writing export files", e);
+			return -1;
+		} finally {
+			dbHelper.close();
+		}
+	}
+
+	@Override
+	protected void onPostExecute(Integer count) {
+		String text;
+		if (count < 0)
+			text = mCtx.getString(R.string.export_error_toast);
+		else
+			text = mCtx.getString(R.string.export_done_toast, count);
+		Toast.makeText(mCtx, text, Toast.LENGTH_SHORT).show();
+	}
+}
@@ -0,0 +1,169 @@
+package org.feup.fuelmonitor;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import android.database.Cursor;
+
+/**
+ * FleetDataGenerator - Fills a database with made up but plausible vehicles
+ * and fueling histories, for the benchmarks. Every vehicle has its own tank,
+ * consumption and driving style; the kms only go up, the consumption is higher
+ * in the winter and the fuel price drifts over the years. However many
+ * fuelings a vehicle gets, its history spans the ten years from 2005, so the
+ * queries by day, month or year see the same share of the rows at any scale.
+ * The same seed always generates the same fleet.
+ */
+class FleetDataGenerator {
+
+	private static final int FIRST_DAY = 12784; /* 2005-01-01 */
+	private static final int SPAN_DAYS = 3652; /* to 2015-01-01 */
+	private static final String[] MODELS = new String[] { "Clio", "Golf",
+			"Corsa", "Focus", "Punto", "206", "Megane", "Astra", "Ibiza",
+			"Yaris", "Civic", "C3", "Polo", "Fiesta", "Leon" };
+	private static final String[] STATIONS = new String[] { "Galp", "BP",
+			"Repsol", "Cepsa", "Prio", "Intermarché", "Jumbo" };
+
+	private final Random mRandom;
+
+	/* The state of every generated vehicle, by index */
+	private long[] mIds;
+	private int[] mCapacity; /* litres */
+	private float[] mConsumption; /* l/100km, before the season and style */
+	private float[] mMeanDistance; /* kms between fuelings, on average */
+	private int[] mDrivingStyle; /* the usual one, 1 to 3 */
+	private float[] mCityShare; /* the chance of a fueling being in the city */
+	private int[] mKms; /* at the last fueling */
+	private double[] mDay; /* of the last fueling, see toEpochDay */
+	private double mDayStep; /* days between fuelings, on average */
+
+	FleetDataGenerator(long seed) {
+		mRandom = new Random(seed);
+	}
+
+	/**
+	 * Adds the vehicles of the fleet, replacing any fleet generated before
+	 *
+	 * @param db
+	 *            an open adapter
+	 * @param count
+	 *            the number of vehicles
+	 * @return the ids of the vehicles
+	 */
+	long[] createVehicles(FuelMonitorDbAdapter db, int count) {
+		Cursor makes = db.fetchMakes();
+		int makeCount = makes.getCount();
+		makes.close();
+		Cursor fuelTypes = db.fetchFuelingTypes();
+		int fuelTypeCount = fuelTypes.getCount();
+		fuelTypes.close();
+
+		mIds = new long[count];
+		mCapacity = new int[count];
+		mConsumption = new float[count];
+		mMeanDistance = new float[count];
+		mDrivingStyle = new int[count];
+		mCityShare = new float[count];
+		mKms = new int[count];
+		mDay = new double[count];
+		mDayStep = 0;
+		for (int i = 0; i < count; i++) {
+			mCapacity[i] = 40 + mRandom.nextInt(41);
+			// bigger tanks come with thirstier vehicles
+			mConsumption[i] = 3.5f + mCapacity[i] / 20f + mRandom.nextFloat()
+					* 2;
+			mDrivingStyle[i] = 1 + mRandom.nextInt(3);
+			mCityShare[i] = mRandom.nextFloat();
+			// the mean fill below, at the mean consumption of the vehicle
+			mMeanDistance[i] = mCapacity[i] * 0.725f * 100 / mConsumption[i]
+					/ (0.9f + 0.1f * mDrivingStyle[i])
+					/ (1 + 0.15f * mCityShare[i]);
+			mKms[i] = mRandom.nextInt(150000);
+			mDay[i] = FIRST_DAY;
+			String registration = String.format("%02d-%c%c-%02d",
+					i % 100, (char) ('A' + i / 100 % 26),
+					(char) ('A' + i / 2600 % 26), i / 67600 % 100);
+			mIds[i] = db.addVehicle(1 + mRandom.nextInt(makeCount),
+					MODELS[mRandom.nextInt(MODELS.length)],
+					1 + mRandom.nextInt(fuelTypeCount),
+					(short) mCapacity[i], registration,
+					(short) (1995 + mRandom.nextInt(18)), mKms[i]);
+		}
+		return mIds;
+	}
+
+	/**
+	 * Returns the next fuelings of every vehicle, vehicle after vehicle. A
+	 * later call goes on from where the previous one stopped, at the same pace,
+	 * so the fuelings of the first call span ten years and those of a later
+	 * call follow them
+	 *
+	 * @param perVehicle
+	 *            the number of fuelings of each vehicle
+	 * @return the fuelings, for FuelMonitorDbAdapter.importFuelings
+	 */
+	Iterator<FuelingRecord> fuelings(final int perVehicle) {
+		if (mDayStep == 0 && perVehicle > 0)
+			mDayStep = (double) SPAN_DAYS / perVehicle;
+		return new Iterator<FuelingRecord>() {
+			private int mVehicle;
+			private int mFueling;
+
+			public boolean hasNext() {
+				return mVehicle < mIds.length && perVehicle > 0;
+			}
+
+			public FuelingRecord next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				FuelingRecord record = nextFueling(mVehicle);
+				if (++mFueling == perVehicle) {
+					mFueling = 0;
+					mVehicle++;
+				}
+				return record;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Makes up the next fueling of a vehicle and moves its kms and day ahead
+	 */
+	private FuelingRecord nextFueling(int v) {
+		Random r = mRandom;
+		// fills 50% to 95% of the tank
+		float litres = mCapacity[v] * (0.5f + r.nextFloat() * 0.45f);
+
+		int drivingStyle = r.nextInt(4) == 0 ? 1 + r.nextInt(3)
+				: mDrivingStyle[v];
+		boolean city = r.nextFloat() < mCityShare[v];
+		boolean road = r.nextFloat() < 0.5f;
+		boolean freeway = !city && !road || r.nextFloat() < 0.3f;
+
+		// up to 10% more in january than in july
+		double season = Math.cos(2 * Math.PI * (mDay[v] - FIRST_DAY) / 365.25);
+		float consumption = mConsumption[v] * (float) (1 + 0.05 * season)
+				* (0.9f + 0.1f * drivingStyle) * (city ? 1.15f : 1)
+				* (0.95f + r.nextFloat() * 0.1f);
+
+		int distance = Math.max((int) (litres * 100 / consumption), 1);
+		mKms[v] += distance;
+		// the longer the distance, the longer until the next fueling
+		mDay[v] += mDayStep * distance / mMeanDistance[v];
+		int day = (int) mDay[v];
+
+		// from about 1.20 to 1.70 eur/l over the ten years, give or take
+		float elapsed = Math.min((day - FIRST_DAY) / (float) SPAN_DAYS, 1);
+		float price = 1.2f + 0.5f * elapsed + (r.nextFloat() - 0.5f) * 0.1f;
+
+		return new FuelingRecord(FuelMonitorDbAdapter.toDateString(day),
+				mKms[v], STATIONS[r.nextInt(STATIONS.length)], litres, litres
+						* price, city ? 1 : 0, road ? 1 : 0, freeway ? 1 : 0,
+				drivingStyle, mIds[v]);
+	}
+}
@@ -2,6 +2,7 @@ package org.feup.fuelmonitor;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.view.Menu;
 import android.view.View;
 import android.widget.Button;
 import android.widget.Toast;
@@ -12,6 +13,8 @@ import com.actionbarsherlock.app.SherlockActivity;
  */
 public class FuelMonitor extends SherlockActivity {
 
+	private static final int MENU_DEBUG = Menu.FIRST;
+
 	private FuelMonitorDbAdapter mDbHelper; /* The object for manipulating the data */
 	
 	/**
@@ -22,6 +25,7 @@ public class FuelMonitor extends SherlockActivity {
 		super.onCreate(savedInstanceState);
 
 		mDbHelper = new FuelMonitorDbAdapter(this);
+		mDbHelper.open();
 
 		setContentView(R.layout.main);
 		Button b1 = (Button) findViewById(R.id.main_fuelingButton);
@@ -31,9 +35,7 @@ public class FuelMonitor extends SherlockActivity {
 		b1.setOnClickListener(new View.OnClickListener() {
 			public void onClick(View v) {
 
-				mDbHelper.open();
 				int numVehicles = mDbHelper.getNumVehicles();
-				mDbHelper.close();
 				if (numVehicles > 0) {
 					Intent i = new Intent(getApplicationContext(),
 							AddFueling.class);
@@ -58,9 +60,7 @@ public class FuelMonitor extends SherlockActivity {
 		});
 		b3.setOnClickListener(new View.OnClickListener() {
 			public void onClick(View v) {
-				mDbHelper.open();
 				int numVehicles = mDbHelper.getNumVehicles();
-				mDbHelper.close();
 				if (numVehicles > 0) {
 					Intent i = new Intent(getApplicationContext(), Stats.class);
 					startActivity(i);
@@ -87,4 +87,36 @@ public class FuelMonitor extends SherlockActivity {
 		});
 	}
 
+	/**
+	 * Function that is called when the activity is destroyed.
+	 */
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		mDbHelper.close();
+	}
+
+	/**
+	 * Populates the options menu with the debug screen
+	 */
+	@Override
+	public boolean onCreateOptionsMenu(com.actionbarsherlock.view.Menu menu) {
+		menu.add(0, MENU_DEBUG, 0, R.string.debug);
+		return super.onCreateOptionsMenu(menu);
+	}
+
+	/**
+	 * Opens the debug screen when it is selected
+	 */
+	@Override
+	public boolean onOptionsItemSelected(
+			com.actionbarsherlock.view.MenuItem item) {
+		if (item.getItemId() == MENU_DEBUG) {
+			startActivity(new Intent(getApplicationContext(),
+					DebugActivity.class));
+			return true;
+		}
+		return super.onOptionsItemSelected(item);
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,31 @@
+package org.feup.fuelmonitor;
+
+import android.app.Application;
+
+/**
+ * FuelMonitorApplication - Holds the state shared by all the activities for
+ * the lifetime of the process
+ */
+public class FuelMonitorApplication extends Application {
+
+	/**
+	 * Function that is called when the process starts, before any activity
+	 */
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		QueryTracer.loadSetting(this);
+	}
+
+	/**
+	 * Function that is called when the system runs low on memory. The database
+	 * connection kept open between screens is closed if no screen uses it, and
+	 * the cached statistics are dropped
+	 */
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		FuelMonitorDbAdapter.closeIdleDatabase();
+		StatsCache.getInstance().trim();
+	}
+}
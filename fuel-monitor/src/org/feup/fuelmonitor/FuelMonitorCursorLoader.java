@@ -0,0 +1,137 @@
+package org.feup.fuelmonitor;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.v4.content.AsyncTaskLoader;
+
+/**
+ * FuelMonitorCursorLoader - Runs a FuelMonitorDbAdapter query in the
+ * background and delivers the cursor to the activity. The query is run again
+ * whenever the adapter writes to the database.
+ */
+public class FuelMonitorCursorLoader extends AsyncTaskLoader<Cursor> {
+
+	/**
+	 * The queries this loader can run
+	 */
+	public static final int VEHICLES = 0; /* fetchVehicles() */
+	public static final int VEHICLE = 1; /* getVehicleByID(rowId) */
+	public static final int VEHICLE_STATS = 2; /* fetchVehicleStats(rowId) */
+	public static final int FUELING = 3; /* getFuelingByID(rowId) */
+	public static final int MAKES = 4; /* fetchMakes() */
+	public static final int FUEL_TYPES = 5; /* fetchFuelingTypes() */
+
+	private final ForceLoadContentObserver mObserver;
+	private final int mQuery;
+	private final long mRowId;
+	private FuelMonitorDbAdapter mDbHelper;
+	private Cursor mCursor;
+
+	/**
+	 * Creates a loader for one of the adapter queries
+	 *
+	 * @param context
+	 *            the context within which to work
+	 * @param query
+	 *            the query to run (one of the constants of this class)
+	 * @param rowId
+	 *            the id the query is about, ignored by the queries that don't
+	 *            take one
+	 */
+	public FuelMonitorCursorLoader(Context context, int query, long rowId) {
+		super(context);
+		mObserver = new ForceLoadContentObserver();
+		mQuery = query;
+		mRowId = rowId;
+	}
+
+	/**
+	 * Runs the query on the loader thread
+	 */
+	@Override
+	public Cursor loadInBackground() {
+		if (mDbHelper == null)
+			mDbHelper = new FuelMonitorDbAdapter(getContext()).open();
+		Cursor cursor;
+		switch (mQuery) {
+		case VEHICLES:
+			cursor = mDbHelper.fetchVehicles();
+			break;
+		case VEHICLE:
+			cursor = mDbHelper.getVehicleByID(mRowId);
+			break;
+		case VEHICLE_STATS:
+			cursor = mDbHelper.fetchVehicleStats(mRowId);
+			break;
+		case FUELING:
+			cursor = mDbHelper.getFuelingByID(mRowId);
+			break;
+		case MAKES:
+			cursor = mDbHelper.fetchMakes();
+			break;
+		case FUEL_TYPES:
+			cursor = mDbHelper.fetchFuelingTypes();
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown query " + mQuery);
+		}
+		// Fill the cursor window here instead of on the main thread
+		cursor.getCount();
+		cursor.setNotificationUri(getContext().getContentResolver(),
+				FuelMonitorDbAdapter.CONTENT_URI);
+		cursor.registerContentObserver(mObserver);
+		return cursor;
+	}
+
+	/**
+	 * Delivers the cursor to the activity, closing the one it replaces
+	 */
+	@Override
+	public void deliverResult(Cursor cursor) {
+		if (isReset()) {
+			if (cursor != null)
+				cursor.close();
+			return;
+		}
+		Cursor oldCursor = mCursor;
+		mCursor = cursor;
+
+		if (isStarted())
+			super.deliverResult(cursor);
+
+		if (oldCursor != null && oldCursor != cursor && !oldCursor.isClosed())
+			oldCursor.close();
+	}
+
+	@Override
+	protected void onStartLoading() {
+		if (mCursor != null)
+			deliverResult(mCursor);
+		if (takeContentChanged() || mCursor == null)
+			forceLoad();
+	}
+
+	@Override
+	protected void onStopLoading() {
+		cancelLoad();
+	}
+
+	@Override
+	public void onCanceled(Cursor cursor) {
+		if (cursor != null && !cursor.isClosed())
+			cursor.close();
+	}
+
+	@Override
+	protected void onReset() {
+		super.onReset();
+		onStopLoading();
+
+		if (mCursor != null && !mCursor.isClosed())
+			mCursor.close();
+		mCursor = null;
+		if (mDbHelper != null)
+			mDbHelper.close();
+		mDbHelper = null;
+	}
+}
@@ -16,12 +16,22 @@
 
 package org.feup.fuelmonitor;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.feup.fuelmonitor.analytics.CivilDate;
+import org.feup.fuelmonitor.analytics.FuelingSeries;
+
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
 import android.util.Log;
 
 /**
@@ -30,8 +40,29 @@ import android.util.Log;
 public class FuelMonitorDbAdapter {
 
 	private static final String TAG = "FuelMonitorDbAdapter";
-	private DatabaseHelper mDbHelper; /* The database helper */
-	private SQLiteDatabase mDb; /* The sqlite database */
+
+	/**
+	 * The uri notified after every write, cursors registered on it (e.g. by
+	 * FuelMonitorCursorLoader) are reloaded when the data changes
+	 */
+	public static final Uri CONTENT_URI = Uri
+			.parse("content://org.feup.fuelmonitor");
+
+	/**
+	 * The connection shared by every adapter of the process. It's opened by
+	 * the first open() and kept open when the last adapter is closed, so
+	 * moving between screens doesn't reopen the database file
+	 */
+	private static DatabaseHelper sDbHelper;
+	private static SQLiteDatabase sDb;
+	private static int sOpenCount; /* adapters currently open */
+	/* The statements compiled on sDb, by sql */
+	private static final HashMap<String, SQLiteStatement> sStatements = new HashMap<String, SQLiteStatement>();
+	private static StorageProfile sStorageProfile = StorageProfile.WAL;
+
+	private SQLiteDatabase mDb; /* The sqlite database, null when closed */
+	private HashMap<String, SQLiteStatement> mStatements; /* compiled on mDb */
+	private DatabaseHelper mPrivateDbHelper; /* see openPrivate */
 
 	/**
 	 * Database creation sql statement
@@ -59,8 +90,176 @@ public class FuelMonitorDbAdapter {
 			+ "  drivingStyle integer NOT NULL ,"
 			+ "  idVehicle integer REFERENCES Vehicle ON DELETE CASCADE);";
 
+	/**
+	 * Version 2 - indexes for the per vehicle fueling lookups (quantity is
+	 * included so the kms and consumption queries never touch the table)
+	 */
+	private static final String FUELING_VEHICLE_KMS_INDEX_CREATE = "CREATE INDEX IF NOT EXISTS FuelingVehicleKms"
+			+ " ON Fueling (idVehicle, kmsAtFueling, quantity);";
+	private static final String FUELING_VEHICLE_DATE_INDEX_CREATE = "CREATE INDEX IF NOT EXISTS FuelingVehicleDate"
+			+ " ON Fueling (idVehicle, date);";
+
+	/**
+	 * Version 3 - per vehicle running totals, kept up to date by triggers on
+	 * every Vehicle and Fueling write
+	 */
+	private static final String VEHICLESTATS_CREATE = "CREATE TABLE IF NOT EXISTS VehicleStats ("
+			+ "  idVehicle INTEGER PRIMARY KEY,"
+			+ "  numFuelings integer NOT NULL DEFAULT 0,"
+			+ "  maxKms integer,"
+			+ "  totalLitres double NOT NULL DEFAULT 0,"
+			+ "  totalCost double NOT NULL DEFAULT 0);";
+	private static final String VEHICLESTATS_VEHICLE_INSERT_TRIGGER = "CREATE TRIGGER IF NOT EXISTS VehicleStatsVehicleInsert"
+			+ " AFTER INSERT ON Vehicle BEGIN"
+			+ "  INSERT OR IGNORE INTO VehicleStats (idVehicle) VALUES (NEW._id);"
+			+ " END;";
+	private static final String VEHICLESTATS_VEHICLE_DELETE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS VehicleStatsVehicleDelete"
+			+ " AFTER DELETE ON Vehicle BEGIN"
+			+ "  DELETE FROM VehicleStats WHERE idVehicle = OLD._id;"
+			+ " END;";
+	private static final String VEHICLESTATS_FUELING_INSERT_TRIGGER = "CREATE TRIGGER IF NOT EXISTS VehicleStatsFuelingInsert"
+			+ " AFTER INSERT ON Fueling BEGIN"
+			+ "  INSERT OR IGNORE INTO VehicleStats (idVehicle) VALUES (NEW.idVehicle);"
+			+ "  UPDATE VehicleStats SET numFuelings = numFuelings + 1,"
+			+ "   totalLitres = totalLitres + NEW.quantity,"
+			+ "   totalCost = totalCost + NEW.cost,"
+			+ "   maxKms = MAX(COALESCE(maxKms, NEW.kmsAtFueling), NEW.kmsAtFueling)"
+			+ "   WHERE idVehicle = NEW.idVehicle;"
+			+ " END;";
+	// The totals are reset instead of subtracted when the last fueling goes
+	// away so rounding errors don't pile up on empty vehicles
+	private static final String VEHICLESTATS_FUELING_DELETE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS VehicleStatsFuelingDelete"
+			+ " AFTER DELETE ON Fueling BEGIN"
+			+ "  UPDATE VehicleStats SET numFuelings = numFuelings - 1,"
+			+ "   totalLitres = CASE WHEN numFuelings > 1 THEN totalLitres - OLD.quantity ELSE 0 END,"
+			+ "   totalCost = CASE WHEN numFuelings > 1 THEN totalCost - OLD.cost ELSE 0 END,"
+			+ "   maxKms = (SELECT MAX(kmsAtFueling) FROM Fueling WHERE idVehicle = OLD.idVehicle)"
+			+ "   WHERE idVehicle = OLD.idVehicle;"
+			+ " END;";
+	private static final String VEHICLESTATS_FUELING_UPDATE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS VehicleStatsFuelingUpdate"
+			+ " AFTER UPDATE OF kmsAtFueling, quantity, cost, idVehicle ON Fueling BEGIN"
+			+ "  UPDATE VehicleStats SET numFuelings = numFuelings - 1,"
+			+ "   totalLitres = CASE WHEN numFuelings > 1 THEN totalLitres - OLD.quantity ELSE 0 END,"
+			+ "   totalCost = CASE WHEN numFuelings > 1 THEN totalCost - OLD.cost ELSE 0 END"
+			+ "   WHERE idVehicle = OLD.idVehicle;"
+			+ "  INSERT OR IGNORE INTO VehicleStats (idVehicle) VALUES (NEW.idVehicle);"
+			+ "  UPDATE VehicleStats SET numFuelings = numFuelings + 1,"
+			+ "   totalLitres = totalLitres + NEW.quantity,"
+			+ "   totalCost = totalCost + NEW.cost"
+			+ "   WHERE idVehicle = NEW.idVehicle;"
+			+ "  UPDATE VehicleStats SET"
+			+ "   maxKms = (SELECT MAX(kmsAtFueling) FROM Fueling WHERE idVehicle = VehicleStats.idVehicle)"
+			+ "   WHERE idVehicle IN (OLD.idVehicle, NEW.idVehicle);"
+			+ " END;";
+
+	/**
+	 * Version 4 - fueling dates as days since 1970-01-01, so date ranges are
+	 * index range scans instead of strftime calls on every row
+	 */
+	private static final String FUELING_DAY_COLUMN_ADD = "ALTER TABLE Fueling ADD COLUMN day integer;";
+	private static final String FUELING_DAY_COLUMN_FILL = "UPDATE Fueling"
+			+ " SET day = CAST(julianday(date) - 2440587.5 AS INTEGER);";
+	private static final String FUELING_VEHICLE_DAY_INDEX_CREATE = "CREATE INDEX IF NOT EXISTS FuelingVehicleDay"
+			+ " ON Fueling (idVehicle, day);";
+
+	/**
+	 * Version 5 - the kms driven since the previous fueling and the
+	 * consumption of that distance, stored on every fueling. The previous
+	 * fueling is the one before in (kmsAtFueling, _id) order, or the vehicle's
+	 * initial kms for the first one, so a second fueling at the same kms has a
+	 * distance of 0 and no consumption. Triggers keep both up to date on the
+	 * written fueling and on the one after it
+	 */
+	private static final String FUELING_DISTANCE_COLUMN_ADD = "ALTER TABLE Fueling ADD COLUMN distance integer;";
+	private static final String FUELING_CONSUMPTION_COLUMN_ADD = "ALTER TABLE Fueling ADD COLUMN consumption double;";
+	private static final String FUELING_DISTANCE = "kmsAtFueling - COALESCE((SELECT P.kmsAtFueling FROM Fueling P"
+			+ "   WHERE P.idVehicle = Fueling.idVehicle AND P.kmsAtFueling <= Fueling.kmsAtFueling"
+			+ "   AND (P.kmsAtFueling < Fueling.kmsAtFueling OR P._id < Fueling._id)"
+			+ "   ORDER BY P.kmsAtFueling DESC LIMIT 1),"
+			+ "  (SELECT kms FROM Vehicle WHERE _id = Fueling.idVehicle))";
+	private static final String FUELING_DISTANCE_UPDATE = "UPDATE Fueling SET distance = "
+			+ FUELING_DISTANCE + ", consumption = quantity * 100 / ("
+			+ FUELING_DISTANCE + ")";
+	private static final String FUELING_DISTANCE_FILL = FUELING_DISTANCE_UPDATE + ";";
+
+	/**
+	 * @return the statement, for a trigger body, that updates the distance of
+	 *         the fueling after the (kms, id) position of a vehicle
+	 */
+	private static String updateNextDistance(String vehicle, String kms,
+			String id) {
+		return "  " + FUELING_DISTANCE_UPDATE
+				+ " WHERE _id = (SELECT N._id FROM Fueling N WHERE N.idVehicle = "
+				+ vehicle + " AND N.kmsAtFueling >= " + kms
+				+ " AND (N.kmsAtFueling > " + kms + " OR N._id > " + id
+				+ ") ORDER BY N.kmsAtFueling, N._id LIMIT 1);";
+	}
+
+	private static final String FUELING_DISTANCE_INSERT_TRIGGER = "CREATE TRIGGER IF NOT EXISTS FuelingDistanceInsert"
+			+ " AFTER INSERT ON Fueling BEGIN"
+			+ "  " + FUELING_DISTANCE_UPDATE + " WHERE _id = NEW._id;"
+			+ updateNextDistance("NEW.idVehicle", "NEW.kmsAtFueling", "NEW._id")
+			+ " END;";
+	private static final String FUELING_DISTANCE_DELETE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS FuelingDistanceDelete"
+			+ " AFTER DELETE ON Fueling BEGIN"
+			+ updateNextDistance("OLD.idVehicle", "OLD.kmsAtFueling", "OLD._id")
+			+ " END;";
+	private static final String FUELING_DISTANCE_UPDATE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS FuelingDistanceUpdate"
+			+ " AFTER UPDATE OF kmsAtFueling, quantity, idVehicle ON Fueling BEGIN"
+			+ "  " + FUELING_DISTANCE_UPDATE + " WHERE _id = NEW._id;"
+			+ updateNextDistance("OLD.idVehicle", "OLD.kmsAtFueling", "OLD._id")
+			+ updateNextDistance("NEW.idVehicle", "NEW.kmsAtFueling", "NEW._id")
+			+ " END;";
+	// The first fueling is counted from the vehicle's initial kms
+	private static final String FUELING_DISTANCE_VEHICLE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS FuelingDistanceVehicleUpdate"
+			+ " AFTER UPDATE OF kms ON Vehicle BEGIN"
+			+ "  " + FUELING_DISTANCE_UPDATE
+			+ " WHERE _id = (SELECT F._id FROM Fueling F WHERE F.idVehicle = NEW._id"
+			+ "   ORDER BY F.kmsAtFueling, F._id LIMIT 1);"
+			+ " END;";
+
+	/**
+	 * Period sizes for the grouped consumption queries
+	 */
+	public static final int BUCKET_DAY = 0;
+	public static final int BUCKET_WEEK = 1;
+	public static final int BUCKET_MONTH = 2;
+	public static final int BUCKET_QUARTER = 3;
+	public static final int BUCKET_YEAR = 4;
+	private static final String DAY_AS_DATE = "day * 86400, 'unixepoch'";
+	private static final String[] BUCKET_PERIODS = new String[] {
+			"strftime('%Y-%m-%d', " + DAY_AS_DATE + ")",
+			"strftime('%Y-%W', " + DAY_AS_DATE + ")",
+			"strftime('%Y-%m', " + DAY_AS_DATE + ")",
+			"strftime('%Y', " + DAY_AS_DATE + ") || '-Q' || ((strftime('%m', "
+					+ DAY_AS_DATE + ") + 2) / 3)",
+			"strftime('%Y', " + DAY_AS_DATE + ")" };
+
+	/**
+	 * Single value queries, compiled once per connection (see getStatement)
+	 */
+	private static final String NUM_VEHICLES_QUERY = "SELECT COUNT(*) FROM Vehicle";
+	private static final String REGISTRATION_QUERY = "SELECT registration FROM Vehicle WHERE _id = ?";
+	private static final String MIN_KMS_QUERY = "SELECT kms FROM Vehicle WHERE _id = ?";
+	private static final String NUM_FUELINGS_QUERY = "SELECT numFuelings FROM VehicleStats WHERE idVehicle = ?";
+	private static final String MAX_KMS_QUERY = "SELECT maxKms FROM VehicleStats WHERE idVehicle = ?";
+	private static final String TOTAL_LITRES_QUERY = "SELECT totalLitres FROM VehicleStats WHERE idVehicle = ?";
+	private static final String TOTAL_COST_QUERY = "SELECT totalCost FROM VehicleStats WHERE idVehicle = ?";
+	private static final String COURSE_TYPE_CITY_QUERY = "SELECT courseTypeCity FROM Fueling WHERE _id = ?";
+	private static final String COURSE_TYPE_ROAD_QUERY = "SELECT courseTypeRoad FROM Fueling WHERE _id = ?";
+	private static final String COURSE_TYPE_FREEWAY_QUERY = "SELECT courseTypeFreeway FROM Fueling WHERE _id = ?";
+	private static final String CONSUMPTION_QUERY = "SELECT consumption FROM Fueling WHERE _id = ?";
+	private static final String LAST_FUELING_VEHICLE_QUERY = "SELECT idVehicle FROM Fueling ORDER BY _id DESC LIMIT 1";
+	private static final String FUELING_VEHICLE_QUERY = "SELECT idVehicle FROM Fueling WHERE _id = ?";
+
+	private static final String FUELING_INSERT = "INSERT INTO Fueling (date, day, kmsAtFueling, fuelStation, quantity, cost,"
+			+ " courseTypeCity, courseTypeRoad, courseTypeFreeway, drivingStyle, idVehicle)"
+			+ " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+	private static final int SERIES_PAGE_SIZE = 1000; /* fuelings, see loadFuelingSeries */
+
 	private static final String DATABASE_NAME = "data";
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 5;
 
 	private final Context mCtx;
 
@@ -71,10 +270,12 @@ public class FuelMonitorDbAdapter {
 	private static class DatabaseHelper extends SQLiteOpenHelper {
 
 		private final Context mCtx;
+		private final StorageProfile mProfile;
 
-		DatabaseHelper(Context context) {
-			super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		DatabaseHelper(Context context, String name, StorageProfile profile) {
+			super(context, name, null, DATABASE_VERSION);
 			mCtx = context;
+			mProfile = profile;
 		}
 
 		@Override
@@ -110,19 +311,103 @@ public class FuelMonitorDbAdapter {
 				db.insert("make", null, makes);
 			}
 
+			// The statements above build the version 1 schema, bring it up to
+			// date through the same path used by existing installs
+			migrate(db, 1, DATABASE_VERSION);
+		}
+
+		/**
+		 * Only called on Android 4.1 and up
+		 */
+		@Override
+		public void onConfigure(SQLiteDatabase db) {
+			mProfile.configure(db);
+		}
+
+		@Override
+		public void onOpen(SQLiteDatabase db) {
+			super.onOpen(db);
+			if (!db.isReadOnly())
+				// Enable foreign key constraints (MAY NOT WORK ON < 2.1)
+				db.execSQL("PRAGMA foreign_keys=ON;");
+			mProfile.apply(db);
 		}
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-			Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-					+ newVersion + ", which will destroy all old data");
-			db.execSQL("DROP TABLE IF EXISTS Fueling;");
-			db.execSQL("DROP TABLE IF EXISTS FuelType;");
-			db.execSQL("DROP TABLE IF EXISTS Make;");
-			db.execSQL("DROP TABLE IF EXISTS Model;");
-			db.execSQL("DROP TABLE IF EXISTS Vehicle;");
-			onCreate(db);
+			Log.i(TAG, "Upgrading database from version " + oldVersion + " to "
+					+ newVersion);
+			migrate(db, oldVersion, newVersion);
 		}
+
+		/**
+		 * Applies, in order, every schema change after oldVersion up to
+		 * newVersion. Runs inside the transaction opened by SQLiteOpenHelper,
+		 * so a failed step leaves the database untouched
+		 *
+		 * @param db
+		 *            the database being upgraded
+		 * @param oldVersion
+		 *            the version the database is currently at
+		 * @param newVersion
+		 *            the version to upgrade to
+		 */
+		private void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+			for (int version = oldVersion + 1; version <= newVersion; version++) {
+				switch (version) {
+				case 2:
+					Log.i(TAG, "Creating Fueling indexes");
+					db.execSQL(FUELING_VEHICLE_KMS_INDEX_CREATE);
+					db.execSQL(FUELING_VEHICLE_DATE_INDEX_CREATE);
+					break;
+				case 3:
+					Log.i(TAG, "Creating VehicleStats table");
+					db.execSQL(VEHICLESTATS_CREATE);
+					db.execSQL(VEHICLESTATS_VEHICLE_INSERT_TRIGGER);
+					db.execSQL(VEHICLESTATS_VEHICLE_DELETE_TRIGGER);
+					db.execSQL(VEHICLESTATS_FUELING_INSERT_TRIGGER);
+					db.execSQL(VEHICLESTATS_FUELING_DELETE_TRIGGER);
+					db.execSQL(VEHICLESTATS_FUELING_UPDATE_TRIGGER);
+					rebuildVehicleStats(db);
+					break;
+				case 4:
+					Log.i(TAG, "Adding Fueling day column");
+					db.execSQL(FUELING_DAY_COLUMN_ADD);
+					db.execSQL(FUELING_DAY_COLUMN_FILL);
+					db.execSQL(FUELING_VEHICLE_DAY_INDEX_CREATE);
+					db.execSQL("DROP INDEX IF EXISTS FuelingVehicleDate;");
+					break;
+				case 5:
+					Log.i(TAG, "Adding Fueling distance and consumption columns");
+					db.execSQL(FUELING_DISTANCE_COLUMN_ADD);
+					db.execSQL(FUELING_CONSUMPTION_COLUMN_ADD);
+					db.execSQL(FUELING_DISTANCE_FILL);
+					db.execSQL(FUELING_DISTANCE_INSERT_TRIGGER);
+					db.execSQL(FUELING_DISTANCE_DELETE_TRIGGER);
+					db.execSQL(FUELING_DISTANCE_UPDATE_TRIGGER);
+					db.execSQL(FUELING_DISTANCE_VEHICLE_TRIGGER);
+					break;
+				default:
+					throw new IllegalStateException(
+							"No migration to database version " + version);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Recomputes every row of the VehicleStats table from the Fueling table
+	 *
+	 * @param db
+	 *            the database to rebuild the totals on
+	 */
+	private static void rebuildVehicleStats(SQLiteDatabase db) {
+		db.execSQL("DELETE FROM VehicleStats;");
+		db.execSQL("INSERT INTO VehicleStats (idVehicle, numFuelings, maxKms, totalLitres, totalCost)"
+				+ " SELECT V._id, COUNT(F._id), MAX(F.kmsAtFueling),"
+				+ " COALESCE(SUM(F.quantity), 0), COALESCE(SUM(F.cost), 0)"
+				+ " FROM Vehicle V LEFT JOIN Fueling F ON F.idVehicle = V._id"
+				+ " GROUP BY V._id;");
 	}
 
 	/**
@@ -136,10 +421,52 @@ public class FuelMonitorDbAdapter {
 		this.mCtx = ctx;
 	}
 
+	/**
+	 * Sets the storage profile of the shared connection. Must be called before
+	 * the first open() of the process, e.g. in Application.onCreate
+	 *
+	 * @param profile
+	 *            the profile, StorageProfile.WAL by default
+	 * @throws IllegalStateException
+	 *             if the shared connection is already open
+	 */
+	public static void setStorageProfile(StorageProfile profile) {
+		synchronized (FuelMonitorDbAdapter.class) {
+			if (sDb != null)
+				throw new IllegalStateException(
+						"The storage profile must be set before the database is opened");
+			sStorageProfile = profile;
+			sDbHelper = null;
+		}
+	}
+
+	/**
+	 * Opens an adapter on a database file of its own, with its own connection,
+	 * e.g. for the benchmarks. Its writes don't notify CONTENT_URI
+	 *
+	 * @param ctx
+	 *            the Context within which to work
+	 * @param name
+	 *            the name of the database file, created if needed
+	 * @param profile
+	 *            the storage profile of the connection
+	 * @return the open adapter, close() closes its connection
+	 */
+	static FuelMonitorDbAdapter openPrivate(Context ctx, String name,
+			StorageProfile profile) {
+		FuelMonitorDbAdapter adapter = new FuelMonitorDbAdapter(ctx);
+		adapter.mPrivateDbHelper = new DatabaseHelper(
+				ctx.getApplicationContext(), name, profile);
+		adapter.mDb = adapter.mPrivateDbHelper.getWritableDatabase();
+		adapter.mStatements = new HashMap<String, SQLiteStatement>();
+		return adapter;
+	}
+
 	/**
 	 * Open the Fuel Monitor database. If it cannot be opened, try to create a
 	 * new instance of the database. If it cannot be created, throw an exception
-	 * to signal the failure
+	 * to signal the failure. Only the first adapter of the process really
+	 * opens the database, the others share its connection
 	 * 
 	 * @return this (self reference, allowing this to be chained in an
 	 *         initialization call)
@@ -147,22 +474,233 @@ public class FuelMonitorDbAdapter {
 	 *             if the database could be neither opened or created
 	 */
 	public FuelMonitorDbAdapter open() throws SQLException {
-		mDbHelper = new DatabaseHelper(mCtx);
-		mDb = mDbHelper.getWritableDatabase();
-
-		if (!mDb.isReadOnly())
-			// Enable foreign key constraints (MAY NOT WORK ON < 2.1)
-			mDb.execSQL("PRAGMA foreign_keys=ON;");
-
+		synchronized (FuelMonitorDbAdapter.class) {
+			if (mDb != null)
+				return this;
+			if (sDb == null) {
+				if (sDbHelper == null)
+					sDbHelper = new DatabaseHelper(
+							mCtx.getApplicationContext(), DATABASE_NAME,
+							sStorageProfile);
+				sDb = sDbHelper.getWritableDatabase();
+			}
+			sOpenCount++;
+			mDb = sDb;
+			mStatements = sStatements;
+		}
 		return this;
 	}
 
+	/**
+	 * Releases this adapter. The shared connection stays open for the next
+	 * adapter, see closeIdleDatabase()
+	 */
 	public void close() {
-		mDbHelper.close();
+		if (mPrivateDbHelper != null) {
+			closeStatements(mStatements);
+			mPrivateDbHelper.close();
+			mPrivateDbHelper = null;
+			mDb = null;
+			return;
+		}
+		synchronized (FuelMonitorDbAdapter.class) {
+			if (mDb == null)
+				return;
+			mDb = null;
+			sOpenCount--;
+		}
+	}
+
+	/**
+	 * Closes the shared connection if no adapter is using it, to give its
+	 * memory back when the system runs low. The next open() reopens it
+	 */
+	public static void closeIdleDatabase() {
+		synchronized (FuelMonitorDbAdapter.class) {
+			if (sOpenCount > 0 || sDbHelper == null)
+				return;
+			Log.i(TAG, "Closing idle database");
+			closeStatements(sStatements);
+			sDbHelper.close();
+			sDb = null;
+		}
+	}
+
+	private static void closeStatements(
+			HashMap<String, SQLiteStatement> statements) {
+		synchronized (statements) {
+			for (SQLiteStatement statement : statements.values())
+				statement.close();
+			statements.clear();
+		}
+	}
+
+	/**
+	 * Returns the compiled statement of a query, compiling it the first time
+	 * it's used on the current connection. A statement holds its bindings, so
+	 * callers must synchronize on it from binding to reading the result
+	 *
+	 * @param sql
+	 *            one of the _QUERY constants
+	 * @return the statement
+	 */
+	private SQLiteStatement getStatement(String sql) {
+		synchronized (mStatements) {
+			SQLiteStatement statement = mStatements.get(sql);
+			if (statement == null) {
+				statement = mDb.compileStatement(sql);
+				mStatements.put(sql, statement);
+			}
+			return statement;
+		}
+	}
+
+	/**
+	 * Runs a compiled query that takes one id and returns a single number
+	 *
+	 * @param defaultValue
+	 *            the value returned when the query has no rows
+	 */
+	private long simpleQueryForLong(String sql, long rowId, long defaultValue) {
+		SQLiteStatement statement = getStatement(sql);
+		synchronized (statement) {
+			statement.bindLong(1, rowId);
+			try {
+				return statement.simpleQueryForLong();
+			} catch (SQLiteDoneException e) {
+				return defaultValue;
+			}
+		}
+	}
+
+	/**
+	 * Runs a compiled query that takes one id and returns a single text
+	 *
+	 * @param defaultValue
+	 *            the value returned when the query has no rows
+	 */
+	private String simpleQueryForString(String sql, long rowId,
+			String defaultValue) {
+		SQLiteStatement statement = getStatement(sql);
+		synchronized (statement) {
+			statement.bindLong(1, rowId);
+			try {
+				return statement.simpleQueryForString();
+			} catch (SQLiteDoneException e) {
+				return defaultValue;
+			}
+		}
+	}
+
+	/**
+	 * @return the connection of this adapter, for the benchmarks
+	 */
+	SQLiteDatabase getDatabase() {
+		return mDb;
+	}
+
+	/**
+	 * Converts a date to the number of days since 1970-01-01, as stored in the
+	 * Fueling day column
+	 *
+	 * @param year
+	 *            the year
+	 * @param month
+	 *            the month (starting at 1)
+	 * @param dayOfMonth
+	 *            the day of the month
+	 * @return the number of days since 1970-01-01
+	 */
+	public static int toEpochDay(int year, int month, int dayOfMonth) {
+		return CivilDate.toEpochDay(year, month, dayOfMonth);
+	}
+
+	/**
+	 * Converts a yyyy-MM-dd date to the number of days since 1970-01-01
+	 *
+	 * @param date
+	 *            the date, formatted as yyyy-MM-dd
+	 * @return the number of days since 1970-01-01
+	 */
+	public static int toEpochDay(String date) {
+		return toEpochDay(Integer.parseInt(date.substring(0, 4)),
+				Integer.parseInt(date.substring(5, 7)),
+				Integer.parseInt(date.substring(8, 10)));
+	}
+
+	/**
+	 * Converts a yyyy-MM-dd date to the number of days since 1970-01-01,
+	 * rejecting a malformed date instead of throwing
+	 *
+	 * @return the number of days since 1970-01-01, or Integer.MIN_VALUE if
+	 *         the date is not a valid yyyy-MM-dd date
+	 */
+	private static int parseDay(String date) {
+		if (date == null || date.length() != 10 || date.charAt(4) != '-'
+				|| date.charAt(7) != '-')
+			return Integer.MIN_VALUE;
+		try {
+			int day = toEpochDay(date);
+			// a month or a day out of range, e.g. 2013-02-30, comes back as
+			// another date
+			return toDateString(day).equals(date) ? day : Integer.MIN_VALUE;
+		} catch (NumberFormatException e) {
+			return Integer.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * Converts a number of days since 1970-01-01 to a date, the inverse of
+	 * toEpochDay
+	 *
+	 * @param epochDay
+	 *            the number of days since 1970-01-01
+	 * @return the date, formatted as yyyy-MM-dd
+	 */
+	public static String toDateString(int epochDay) {
+		int date = CivilDate.fromEpochDay(epochDay);
+		return String.format("%04d-%02d-%02d", date / 10000, date / 100 % 100,
+				date % 100);
+	}
+
+	/**
+	 * Recomputes the per vehicle running totals from scratch. The totals are
+	 * maintained on every write, so this is only needed to recover from drift
+	 * (e.g. rows changed while the triggers were missing)
+	 */
+	public void rebuildVehicleStats() {
+		long start = QueryTracer.start();
+		mDb.beginTransaction();
+		try {
+			rebuildVehicleStats(mDb);
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+		QueryTracer.end("rebuildVehicleStats", start, 0);
+		notifyChange();
+	}
+
+	/**
+	 * Tells the observers of CONTENT_URI that the data has changed
+	 */
+	private void notifyChange() {
+		if (mPrivateDbHelper == null)
+			mCtx.getContentResolver().notifyChange(CONTENT_URI, null);
+	}
+
+	/**
+	 * Tells StatsCache that the fuelings or the kms of a vehicle changed. A
+	 * private database has ids of its own, so it's not cached
+	 */
+	private void invalidateStats(long vehicleId) {
+		if (mPrivateDbHelper == null)
+			StatsCache.getInstance().invalidate(vehicleId);
 	}
 
 	public long addVehicle(long make, String model, long l, short fuelCapacity,
 			String registration, short year, int kms) {
+		long start = QueryTracer.start();
 		ContentValues vehicle = new ContentValues();
 		vehicle.put("idMake", make);
 		vehicle.put("model", model);
@@ -171,11 +709,15 @@ public class FuelMonitorDbAdapter {
 		vehicle.put("registration", registration);
 		vehicle.put("year", year);
 		vehicle.put("kms", kms);
-		return mDb.insert("vehicle", null, vehicle);
+		long result = mDb.insert("vehicle", null, vehicle);
+		QueryTracer.end("addVehicle", start, result == -1 ? 0 : 1);
+		notifyChange();
+		return result;
 	}
 
 	public long editVehicle(long rowId, long make, String model, long l,
 			short fuelCapacity, String registration, short year, int kms) {
+		long start = QueryTracer.start();
 		ContentValues vehicle = new ContentValues();
 		vehicle.put("idMake", make);
 		vehicle.put("model", model);
@@ -184,15 +726,24 @@ public class FuelMonitorDbAdapter {
 		vehicle.put("registration", registration);
 		vehicle.put("year", year);
 		vehicle.put("kms", kms);
-		return mDb.update("vehicle", vehicle, "_id = ?",
+		int result = mDb.update("vehicle", vehicle, "_id = ?",
 				new String[] { String.valueOf(rowId) });
+		QueryTracer.end("editVehicle", start, result);
+		invalidateStats(rowId);
+		notifyChange();
+		return result;
 	}
 
 	public long addFueling(String date, int kms, String fuelStation,
 			float quantity, float cost, int courseTypeCity, int courseTypeRoad,
 			int courseTypeFreeway, int drivingStyle, long vehicle) {
+		int day = parseDay(date);
+		if (day == Integer.MIN_VALUE)
+			return -1;
+		long start = QueryTracer.start();
 		ContentValues fueling = new ContentValues();
 		fueling.put("date", date);
+		fueling.put("day", day);
 		fueling.put("kmsAtFueling", kms);
 		fueling.put("fuelStation", fuelStation);
 		fueling.put("quantity", quantity);
@@ -202,15 +753,121 @@ public class FuelMonitorDbAdapter {
 		fueling.put("courseTypeFreeway", courseTypeFreeway);
 		fueling.put("drivingStyle", drivingStyle);
 		fueling.put("idVehicle", vehicle);
-		return mDb.insert("fueling", null, fueling);
+		long result = mDb.insert("fueling", null, fueling);
+		QueryTracer.end("addFueling", start, result == -1 ? 0 : 1);
+		if (result != -1 && mPrivateDbHelper == null)
+			StatsCache.getInstance().fuelingAdded(vehicle, kms, quantity, cost,
+					day, drivingStyle);
+		notifyChange();
+		return result;
+	}
+
+	/**
+	 * Receives the progress of importFuelings
+	 */
+	public interface ImportProgressListener {
+		/**
+		 * Called, on the importing thread, after every committed batch
+		 *
+		 * @param imported
+		 *            the records inserted so far
+		 * @param failed
+		 *            the records rejected so far
+		 */
+		void onProgress(int imported, int failed);
+	}
+
+	/**
+	 * Inserts many fuelings, e.g. the history of a fleet. The records are
+	 * inserted through one compiled statement, in transactions of batchSize
+	 * records, so the journal is synced once per batch instead of once per
+	 * fueling. A record that breaks a constraint (or has a malformed date) is
+	 * skipped without undoing the rest of its batch. Takes a while, must not
+	 * be called on the main thread.
+	 * 
+	 * @param records
+	 *            the fuelings to insert
+	 * @param batchSize
+	 *            the number of records per transaction
+	 * @param listener
+	 *            told about the progress after every batch, may be null
+	 * @return the number of fuelings inserted
+	 */
+	public int importFuelings(Iterator<FuelingRecord> records, int batchSize,
+			ImportProgressListener listener) {
+		long start = QueryTracer.start();
+		int imported = 0;
+		int failed = 0;
+		SQLiteStatement insert = mDb.compileStatement(FUELING_INSERT);
+		try {
+			while (records.hasNext()) {
+				mDb.beginTransaction();
+				try {
+					for (int i = 0; i < batchSize && records.hasNext(); i++) {
+						FuelingRecord record = records.next();
+						try {
+							insert.clearBindings();
+							insert.bindString(1, record.date);
+							insert.bindLong(2, toEpochDay(record.date));
+							insert.bindLong(3, record.kms);
+							insert.bindString(4, record.fuelStation);
+							insert.bindDouble(5, record.quantity);
+							insert.bindDouble(6, record.cost);
+							insert.bindLong(7, record.courseTypeCity);
+							insert.bindLong(8, record.courseTypeRoad);
+							insert.bindLong(9, record.courseTypeFreeway);
+							insert.bindLong(10, record.drivingStyle);
+							insert.bindLong(11, record.vehicle);
+							insert.executeInsert();
+							imported++;
+						} catch (SQLException e) {
+							Log.w(TAG, "Skipping fueling of " + record.date
+									+ ": " + e.getMessage());
+							failed++;
+						} catch (IllegalArgumentException e) {
+							// a missing value or a date toEpochDay can't parse
+							Log.w(TAG, "Skipping fueling with date "
+									+ record.date);
+							failed++;
+						} catch (IndexOutOfBoundsException e) {
+							Log.w(TAG, "Skipping fueling with date "
+									+ record.date);
+							failed++;
+						}
+					}
+					mDb.setTransactionSuccessful();
+				} finally {
+					mDb.endTransaction();
+				}
+				if (listener != null)
+					listener.onProgress(imported, failed);
+			}
+		} finally {
+			insert.close();
+			QueryTracer.end("importFuelings", start, imported);
+			if (imported > 0) {
+				if (mPrivateDbHelper == null)
+					StatsCache.getInstance().invalidateAll();
+				notifyChange();
+			}
+		}
+		return imported;
 	}
 
 	public long editFueling(long rowId, String date, int kms,
 			String fuelStation, float quantity, float cost, int courseTypeCity,
 			int courseTypeRoad, int courseTypeFreeway, int drivingStyle,
 			long vehicle) {
+		int day = parseDay(date);
+		if (day == Integer.MIN_VALUE)
+			return -1;
+		long start = QueryTracer.start();
+		// the fueling may be moved to another vehicle
+		long oldVehicle = simpleQueryForLong(FUELING_VEHICLE_QUERY, rowId,
+				vehicle);
 		ContentValues fueling = new ContentValues();
 		fueling.put("date", date);
+		fueling.put("day", day);
 		fueling.put("kmsAtFueling", kms);
 		fueling.put("fuelStation", fuelStation);
 		fueling.put("quantity", quantity);
@@ -220,135 +877,359 @@ public class FuelMonitorDbAdapter {
 		fueling.put("courseTypeFreeway", courseTypeFreeway);
 		fueling.put("drivingStyle", drivingStyle);
 		fueling.put("idVehicle", vehicle);
-		return mDb.update("fueling", fueling, "_id = ?",
+		int result = mDb.update("fueling", fueling, "_id = ?",
 				new String[] { String.valueOf(rowId) });
+		QueryTracer.end("editFueling", start, result);
+		invalidateStats(vehicle);
+		if (oldVehicle != vehicle)
+			invalidateStats(oldVehicle);
+		notifyChange();
+		return result;
 	}
 
 	public Cursor fetchFuelingTypes() {
-
-		return mDb.query("FuelType", new String[] { "_id", "name" }, null,
-				null, null, null, null);
+		long start = QueryTracer.start();
+		Cursor result = mDb.query("FuelType", new String[] { "_id", "name" },
+				null, null, null, null, null);
+		return QueryTracer.end("fetchFuelingTypes", start, result);
 	}
 
 	public Cursor fetchMakes() {
-
-		return mDb.query("Make", new String[] { "_id", "name" }, null, null,
-				null, null, null);
+		long start = QueryTracer.start();
+		Cursor result = mDb.query("Make", new String[] { "_id", "name" }, null,
+				null, null, null, null);
+		return QueryTracer.end("fetchMakes", start, result);
 	}
 
+	/**
+	 * Fetches the vehicles with their totals. The lastFueled column is 1 for
+	 * the vehicle of the latest fueling, so the screens that select it by
+	 * default don't need another query (see getLastFueledVehicleID)
+	 */
 	public Cursor fetchVehicles() {
-		return mDb
+		long start = QueryTracer.start();
+		Cursor result = mDb
 				.rawQuery(
-						"SELECT V._id, model, M.name as makeName, registration FROM Make M, Vehicle V WHERE V.idmake = M._id",
+						"SELECT V._id, model, M.name as makeName, registration, S.numFuelings,"
+								+ " S.totalLitres * 100 / (S.maxKms - V.kms) AS avgConsumption,"
+								+ " V._id = (" + LAST_FUELING_VEHICLE_QUERY + ") AS lastFueled"
+								+ " FROM Make M, Vehicle V LEFT JOIN VehicleStats S ON S.idVehicle = V._id"
+								+ " WHERE V.idmake = M._id",
 						null);
+		return QueryTracer.end("fetchVehicles", start, result);
+	}
+
+	/**
+	 * Fetches the running totals of a vehicle
+	 *
+	 * @param rowId
+	 *            the id of the vehicle
+	 * @return a cursor with the numFuelings, totalKms, totalLitres, totalCost
+	 *         and avgConsumption columns
+	 */
+	public Cursor fetchVehicleStats(long rowId) {
+		long start = QueryTracer.start();
+		Cursor result = mDb
+				.rawQuery(
+						"SELECT S.numFuelings, COALESCE(S.maxKms, 0) - V.kms AS totalKms, S.totalLitres,"
+								+ " S.totalCost, S.totalLitres * 100 / (S.maxKms - V.kms) AS avgConsumption"
+								+ " FROM Vehicle V, VehicleStats S WHERE S.idVehicle = V._id AND V._id = ?",
+						new String[] { String.valueOf(rowId) });
+		return QueryTracer.end("fetchVehicleStats", start, result);
 	}
 
 	public Cursor getVehicleByID(long rowId) {
-		return mDb.query("Vehicle", null, "_id=?",
+		long start = QueryTracer.start();
+		Cursor result = mDb.query("Vehicle", null, "_id=?",
 				new String[] { String.valueOf(rowId) }, null, null, null);
+		return QueryTracer.end("getVehicleByID", start, result);
 	}
 
 	public Cursor getFuelingByID(long rowId) {
-		return mDb.query("Fueling", null, "_id=?",
+		long start = QueryTracer.start();
+		Cursor result = mDb.query("Fueling", null, "_id=?",
 				new String[] { String.valueOf(rowId) }, null, null, null);
+		return QueryTracer.end("getFuelingByID", start, result);
 	}
 
 	public String getRegistrationByID(long rowId) {
-		Cursor result = mDb.query("Vehicle", new String[] { "registration" },
-				"_id=?", new String[] { String.valueOf(rowId) }, null, null,
-				null);
-		result.moveToFirst();
-		return result.getString(0);
+		long start = QueryTracer.start();
+		try {
+			return simpleQueryForString(REGISTRATION_QUERY, rowId, null);
+		} finally {
+			QueryTracer.end("getRegistrationByID", start, 1);
+		}
 	}
 
 	public boolean deleteVehicle(long rowId) {
-		return mDb.delete("vehicle", "_id=?",
-				new String[] { String.valueOf(rowId) }) > 0;
+		long start = QueryTracer.start();
+		int result = mDb.delete("vehicle", "_id=?",
+				new String[] { String.valueOf(rowId) });
+		QueryTracer.end("deleteVehicle", start, result);
+		invalidateStats(rowId);
+		notifyChange();
+		return result > 0;
 	}
 
 	public int getNumVehicles() {
-		Cursor result = mDb.query("Vehicle", new String[] { "COUNT(*)" }, null,
-				null, null, null, null);
-		result.moveToFirst();
-		return result.getInt(0);
+		long start = QueryTracer.start();
+		try {
+			SQLiteStatement statement = getStatement(NUM_VEHICLES_QUERY);
+			synchronized (statement) {
+				return (int) statement.simpleQueryForLong();
+			}
+		} finally {
+			QueryTracer.end("getNumVehicles", start, 1);
+		}
 	}
 
 	public int getNumFuelings(long rowId) {
-		Cursor result = mDb.query("Fueling", new String[] { "COUNT(*)" },
-				"idVehicle=?", new String[] { String.valueOf(rowId) }, null,
-				null, null);
-		result.moveToFirst();
-		return result.getInt(0);
+		long start = QueryTracer.start();
+		try {
+			return (int) simpleQueryForLong(NUM_FUELINGS_QUERY, rowId, 0);
+		} finally {
+			QueryTracer.end("getNumFuelings", start, 1);
+		}
 	}
 
 	public int getMinKms(long rowId) {
-		Cursor result = mDb.query("Vehicle", new String[] { "kms" }, "_id=?",
-				new String[] { String.valueOf(rowId) }, null, null, null);
-		result.moveToFirst();
-		return result.getInt(0);
-
+		long start = QueryTracer.start();
+		try {
+			return (int) simpleQueryForLong(MIN_KMS_QUERY, rowId, 0);
+		} finally {
+			QueryTracer.end("getMinKms", start, 1);
+		}
 	}
 
 	public int getMaxKms(long rowId) {
-		Cursor result = mDb.query("Fueling",
-				new String[] { "MAX(kmsAtFueling)" }, "idVehicle=?",
-				new String[] { String.valueOf(rowId) }, null, null, null);
-		result.moveToFirst();
-		return result.getInt(0);
-
-	}
-
-	public float averageConsumption(int year, int month, int vehicleID) {
-		Cursor result = mDb.rawQuery("SELECT AVG(*) FROM Fueling "
-				+ "Where idVehicle=" + vehicleID + " and date<" + year + "-"
-				+ month + "-30 and date >" + year + "-" + month + "-0", null);
-		return result.getFloat(0);
+		long start = QueryTracer.start();
+		try {
+			return (int) simpleQueryForLong(MAX_KMS_QUERY, rowId, 0);
+		} finally {
+			QueryTracer.end("getMaxKms", start, 1);
+		}
 	}
 
 	public boolean deleteFueling(long rowId) {
-		return mDb.delete("fueling", "_id=?",
-				new String[] { String.valueOf(rowId) }) > 0;
+		long start = QueryTracer.start();
+		long vehicle = simpleQueryForLong(FUELING_VEHICLE_QUERY, rowId, -1);
+		int result = mDb.delete("fueling", "_id=?",
+				new String[] { String.valueOf(rowId) });
+		QueryTracer.end("deleteFueling", start, result);
+		if (result > 0)
+			invalidateStats(vehicle);
+		notifyChange();
+		return result > 0;
 	}
 
 	public Cursor fetchFuelingsByVehicleID(long rowId) {
-		return mDb.query("Fueling", new String[] { "_id", "quantity", "cost",
+		long start = QueryTracer.start();
+		Cursor result = mDb.query("Fueling", new String[] { "_id", "quantity", "cost",
 				"kmsAtFueling", "drivingStyle", "fuelStation", "date" }, "idVehicle=?",
 				new String[] { String.valueOf(rowId) }, null, null,
 				"kmsAtFueling");
+		return QueryTracer.end("fetchFuelingsByVehicleID", start, result);
+	}
+
+	/**
+	 * Fetches every column a fueling list row needs, including the stored
+	 * consumption since the previous fueling. Only the benchmarks read the
+	 * whole list at once, to compare it with fetchFuelingRowsPage, which the
+	 * fueling list uses
+	 *
+	 * @param rowId
+	 *            the id of the vehicle
+	 * @return a cursor over the vehicle fuelings, ordered by kms
+	 */
+	public Cursor fetchFuelingRowsByVehicleID(long rowId) {
+		long start = QueryTracer.start();
+		Cursor result = mDb
+				.rawQuery(
+						"SELECT F._id, F.quantity, F.cost, F.kmsAtFueling, F.drivingStyle, F.fuelStation, F.date,"
+								+ " F.courseTypeCity, F.courseTypeRoad, F.courseTypeFreeway, F.consumption AS avgConsumption"
+								+ " FROM Fueling F WHERE F.idVehicle = ?"
+								+ " ORDER BY F.kmsAtFueling",
+						new String[] { String.valueOf(rowId) });
+		return QueryTracer.end("fetchFuelingRowsByVehicleID", start, result);
+	}
+
+	/**
+	 * Fetches a page of the fueling list rows of a vehicle (the columns of
+	 * fetchFuelingRowsByVehicleID), ordered by kms. The next page starts after
+	 * the kms and _id of the last row of the previous one, so every page is a
+	 * range of the FuelingVehicleKms index however long the history is
+	 *
+	 * @param rowId
+	 *            the id of the vehicle
+	 * @param afterKms
+	 *            the kms of the last row of the previous page,
+	 *            Integer.MIN_VALUE for the first page
+	 * @param afterId
+	 *            the _id of the last row of the previous page, 0 for the first
+	 *            page
+	 * @param pageSize
+	 *            the maximum number of rows of the page
+	 * @return a cursor over the rows of the page
+	 */
+	public Cursor fetchFuelingRowsPage(long rowId, int afterKms, long afterId,
+			int pageSize) {
+		long start = QueryTracer.start();
+		String kms = String.valueOf(afterKms);
+		Cursor result = mDb
+				.rawQuery(
+						"SELECT F._id, F.quantity, F.cost, F.kmsAtFueling, F.drivingStyle, F.fuelStation, F.date,"
+								+ " F.courseTypeCity, F.courseTypeRoad, F.courseTypeFreeway, F.consumption AS avgConsumption"
+								+ " FROM Fueling F WHERE F.idVehicle = ?"
+								+ " AND F.kmsAtFueling >= ? AND (F.kmsAtFueling > ? OR F._id > ?)"
+								+ " ORDER BY F.kmsAtFueling, F._id LIMIT " + pageSize,
+						new String[] { String.valueOf(rowId), kms, kms,
+								String.valueOf(afterId) });
+		return QueryTracer.end("fetchFuelingRowsPage", start, result);
+	}
+
+	/**
+	 * Fetches a page of the stored consumptions of the fuelings of a vehicle,
+	 * from the latest back, for the fueling graph. The next page starts before
+	 * the kms and _id of the last row of the previous one, as in
+	 * fetchFuelingRowsPage
+	 *
+	 * @param rowId
+	 *            the id of the vehicle
+	 * @param beforeKms
+	 *            the kms of the last row of the previous page,
+	 *            Integer.MAX_VALUE for the first page
+	 * @param beforeId
+	 *            the _id of the last row of the previous page, Long.MAX_VALUE
+	 *            for the first page
+	 * @param pageSize
+	 *            the maximum number of rows of the page
+	 * @return a cursor with the _id, kmsAtFueling, consumption and day columns,
+	 *         ordered by kms and _id, descending
+	 */
+	public Cursor fetchConsumptionPageBefore(long rowId, int beforeKms,
+			long beforeId, int pageSize) {
+		long start = QueryTracer.start();
+		String kms = String.valueOf(beforeKms);
+		Cursor result = mDb
+				.rawQuery(
+						"SELECT _id, kmsAtFueling, consumption, day FROM Fueling"
+								+ " WHERE idVehicle = ? AND kmsAtFueling <= ?"
+								+ " AND (kmsAtFueling < ? OR _id < ?)"
+								+ " ORDER BY kmsAtFueling DESC, _id DESC LIMIT " + pageSize,
+						new String[] { String.valueOf(rowId), kms, kms,
+								String.valueOf(beforeId) });
+		return QueryTracer.end("fetchConsumptionPageBefore", start, result);
+	}
+
+	/**
+	 * Loads the fuelings of a vehicle into a FuelingSeries, for
+	 * ConsumptionAnalytics. Reads every fueling once, so it should not be
+	 * called on the main thread
+	 *
+	 * @param rowId
+	 *            the id of the vehicle
+	 * @return the fuelings, in kms order
+	 */
+	public FuelingSeries loadFuelingSeries(long rowId) {
+		return loadFuelingSeries(rowId, null);
+	}
+
+	/**
+	 * Loads the fuelings of a vehicle into a FuelingSeries, as
+	 * loadFuelingSeries(long), unless the load is cancelled meanwhile. The
+	 * fuelings are read in pages of SERIES_PAGE_SIZE, each one starting after
+	 * the kms and _id of the last fueling of the previous one, so a cancelled
+	 * load stops reading the database at the next page
+	 *
+	 * @param rowId
+	 *            the id of the vehicle
+	 * @param cancelled
+	 *            checked before every page, may be null
+	 * @return the fuelings, in kms order, or null if the load was cancelled
+	 */
+	public FuelingSeries loadFuelingSeries(long rowId, AtomicBoolean cancelled) {
+		long start = QueryTracer.start();
+		String vehicle = String.valueOf(rowId);
+		FuelingSeries series = new FuelingSeries(
+				(int) simpleQueryForLong(MIN_KMS_QUERY, rowId, 0),
+				(int) simpleQueryForLong(NUM_FUELINGS_QUERY, rowId, 0));
+		String afterKms = String.valueOf(Integer.MIN_VALUE);
+		String afterId = "0";
+		int read = SERIES_PAGE_SIZE;
+		while (read == SERIES_PAGE_SIZE) {
+			if (cancelled != null && cancelled.get()) {
+				series = null;
+				break;
+			}
+			Cursor result = mDb.query("Fueling", new String[] { "kmsAtFueling",
+					"quantity", "cost", "day", "drivingStyle", "_id" },
+					"idVehicle=? AND kmsAtFueling >= ? AND (kmsAtFueling > ? OR _id > ?)",
+					new String[] { vehicle, afterKms, afterKms, afterId }, null,
+					null, "kmsAtFueling, _id", String.valueOf(SERIES_PAGE_SIZE));
+			try {
+				read = 0;
+				while (result.moveToNext()) {
+					series.add(result.getInt(0), result.getFloat(1),
+							result.getFloat(2), result.getInt(3),
+							result.getInt(4));
+					read++;
+				}
+				if (read > 0) {
+					result.moveToLast();
+					afterKms = result.getString(0);
+					afterId = result.getString(5);
+				}
+			} finally {
+				result.close();
+			}
+		}
+		QueryTracer.end("loadFuelingSeries", start,
+				series == null ? 0 : series.size());
+		return series;
 	}
 
 	public int getFuelingCourseTypeCity(long rowId) {
-		Cursor cursor = mDb.query("Fueling", new String[] { "courseTypeCity" },
-				"_id=?", new String[] { String.valueOf(rowId) }, null, null,
-				null);
-		cursor.moveToFirst();
-		return cursor.getInt(0);
+		long start = QueryTracer.start();
+		try {
+			return (int) simpleQueryForLong(COURSE_TYPE_CITY_QUERY, rowId, 0);
+		} finally {
+			QueryTracer.end("getFuelingCourseTypeCity", start, 1);
+		}
 	}
 
 	public int getFuelingCourseTypeRoad(long rowId) {
-		Cursor cursor = mDb.query("Fueling", new String[] { "courseTypeRoad" },
-				"_id=?", new String[] { String.valueOf(rowId) }, null, null,
-				null);
-		cursor.moveToFirst();
-		return cursor.getInt(0);
+		long start = QueryTracer.start();
+		try {
+			return (int) simpleQueryForLong(COURSE_TYPE_ROAD_QUERY, rowId, 0);
+		} finally {
+			QueryTracer.end("getFuelingCourseTypeRoad", start, 1);
+		}
 	}
 
 	public int getFuelingCourseTypeFreeway(long rowId) {
-		Cursor cursor = mDb.query("Fueling",
-				new String[] { "courseTypeFreeway" }, "_id=?",
-				new String[] { String.valueOf(rowId) }, null, null, null);
-		cursor.moveToFirst();
-		return cursor.getInt(0);
+		long start = QueryTracer.start();
+		try {
+			return (int) simpleQueryForLong(COURSE_TYPE_FREEWAY_QUERY, rowId, 0);
+		} finally {
+			QueryTracer.end("getFuelingCourseTypeFreeway", start, 1);
+		}
 	}
 
 	public float getAverageFuelConsumptionByVehicleID(long rowId) {
-		int totalKms = getTotalKms(rowId);
-		double totalLitres = getTotalLitres(rowId);
-
-		return (float) ((totalLitres * 100) / totalKms);
+		long start = QueryTracer.start();
+		Cursor result = fetchVehicleStats(rowId);
+		try {
+			if (!result.moveToFirst())
+				return 0;
+			return result.getFloat(result.getColumnIndex("avgConsumption"));
+		} finally {
+			result.close();
+			QueryTracer.end("getAverageFuelConsumptionByVehicleID", start, 1);
+		}
 	}
 
 	public int getPreviousKms(long idFueling, int idVehicle) {
+		long start = QueryTracer.start();
 		Cursor result = mDb
 				.query("Fueling",
 						new String[] { "kmsAtFueling" },
@@ -357,89 +1238,301 @@ public class FuelMonitorDbAdapter {
 								String.valueOf(idVehicle),
 								String.valueOf(idVehicle) }, null, null,
 						"kmsAtFueling desc", "1");
-		// if this is the lowest km value, use the first one (when added
-		// vehicle)
-		if (result.getCount() == 0)
-			return getMinKms(idVehicle);
-		result.moveToFirst();
-		int resultInt = result.getInt(0);
-		return resultInt;
+		try {
+			// if this is the lowest km value, use the first one (when added
+			// vehicle)
+			if (result.getCount() == 0)
+				return getMinKms(idVehicle);
+			result.moveToFirst();
+			int resultInt = result.getInt(0);
+			return resultInt;
+		} finally {
+			result.close();
+			QueryTracer.end("getPreviousKms", start, 1);
+		}
 	}
 
 	public float getAverageFuelConsumptionByFuelingID(long rowId) {
-		Cursor result = mDb.query("Fueling", new String[] {
-				"kmsAtFueling, idVehicle", "quantity" }, "_id=?",
-				new String[] { String.valueOf(rowId) }, null, null, null);
-		result.moveToFirst();
-		int currentKms = result.getInt(0);
-		int idVehicle = result.getInt(1);
-		int prevKms = getPreviousKms(rowId, idVehicle);
-		int totalKms = currentKms - prevKms;
-		double totalLitres = result.getDouble(2);
-
-		return (float) ((totalLitres * 100) / totalKms);
+		long start = QueryTracer.start();
+		try {
+			String result = simpleQueryForString(CONSUMPTION_QUERY, rowId, null);
+			return result == null ? 0 : Float.parseFloat(result);
+		} finally {
+			QueryTracer.end("getAverageFuelConsumptionByFuelingID", start, 1);
+		}
 	}
 
 	public float getAverageFuelConsumptionByDate(long rowId, int month, int year) {
+		long start = QueryTracer.start();
+		Cursor result = fetchConsumptionByPeriod(rowId, toEpochDay(year,
+				month, 1), month == 12 ? toEpochDay(year + 1, 1, 1)
+				: toEpochDay(year, month + 1, 1), BUCKET_MONTH);
+		try {
+			if (!result.moveToFirst())
+				return 0;
+			return result.getFloat(result.getColumnIndex("consumption"));
+		} finally {
+			result.close();
+			QueryTracer.end("getAverageFuelConsumptionByDate", start, 1);
+		}
+	}
+
+	/**
+	 * Fetches the fuel consumption of a vehicle grouped in periods, from the
+	 * stored distance of every fueling. The kms of each period are the
+	 * distances driven up to each of its fuelings
+	 *
+	 * @param rowId
+	 *            the id of the vehicle
+	 * @param fromDay
+	 *            the first day of the range (see toEpochDay, inclusive)
+	 * @param toDay
+	 *            the end of the range (see toEpochDay, exclusive)
+	 * @param bucket
+	 *            one of the BUCKET_ constants
+	 * @return a cursor with the period (formatted as yyyy-MM-dd, yyyy-WW,
+	 *         yyyy-MM, yyyy-Qn or yyyy), litres, kms and consumption columns
+	 *         for every period that has fuelings, ordered by period
+	 */
+	public Cursor fetchConsumptionByPeriod(long rowId, int fromDay, int toDay,
+			int bucket) {
+		long start = QueryTracer.start();
 		Cursor result = mDb
-				.query("Fueling",
-						new String[] { "MAX(kmsAtFueling)", "SUM(quantity)" },
-						"idVehicle=? AND strftime('%m', `date`) = ? AND strftime('%Y', `date`) = ?",
+				.rawQuery(
+						"SELECT " + BUCKET_PERIODS[bucket] + " AS period, SUM(quantity) AS litres,"
+								+ " SUM(distance) AS kms, SUM(quantity) * 100 / SUM(distance) AS consumption"
+								+ " FROM Fueling WHERE idVehicle = ? AND day >= ? AND day < ?"
+								+ " GROUP BY period ORDER BY period",
 						new String[] { String.valueOf(rowId),
-								String.format("%02d", month),
-								String.valueOf(year) }, null, null, null);
-		result.moveToFirst();
-		// Have to subtract to previous fueling kms
-		Cursor firstFuelingCursor = mDb
-				.query("Fueling",
-						new String[] { "_id" },
-						"idVehicle=? AND strftime('%m', `date`) = ? AND strftime('%Y', `date`) = ?",
+								String.valueOf(fromDay), String.valueOf(toDay) });
+		return QueryTracer.end("fetchConsumptionByPeriod", start, result);
+	}
+
+	/**
+	 * Fetches the fuel consumption of several vehicles grouped in periods, as
+	 * fetchConsumptionByPeriod, in a single query instead of one per vehicle
+	 *
+	 * @param rowIds
+	 *            the ids of the vehicles
+	 * @param fromDay
+	 *            the first day of the range (see toEpochDay, inclusive)
+	 * @param toDay
+	 *            the end of the range (see toEpochDay, exclusive)
+	 * @param bucket
+	 *            one of the BUCKET_ constants
+	 * @return a cursor with the idVehicle, period, litres, kms and consumption
+	 *         columns for every vehicle and period that has fuelings, ordered
+	 *         by vehicle and period
+	 */
+	public Cursor fetchConsumptionByVehiclesAndPeriod(long[] rowIds,
+			int fromDay, int toDay, int bucket) {
+		long start = QueryTracer.start();
+		StringBuilder vehicles = new StringBuilder();
+		String[] args = new String[rowIds.length + 2];
+		for (int i = 0; i < rowIds.length; i++) {
+			vehicles.append(i == 0 ? "?" : ", ?");
+			args[i] = String.valueOf(rowIds[i]);
+		}
+		args[rowIds.length] = String.valueOf(fromDay);
+		args[rowIds.length + 1] = String.valueOf(toDay);
+		Cursor result = mDb
+				.rawQuery(
+						"SELECT idVehicle, " + BUCKET_PERIODS[bucket] + " AS period, SUM(quantity) AS litres,"
+								+ " SUM(distance) AS kms, SUM(quantity) * 100 / SUM(distance) AS consumption"
+								+ " FROM Fueling WHERE idVehicle IN (" + vehicles + ") AND day >= ? AND day < ?"
+								+ " GROUP BY idVehicle, period ORDER BY idVehicle, period",
+						args);
+		return QueryTracer.end("fetchConsumptionByVehiclesAndPeriod", start,
+				result);
+	}
+
+	/**
+	 * Fetches the kms a vehicle drove on each course type, grouped in periods.
+	 * The distance of a fueling marked with several course types is split
+	 * evenly among them, a fueling marked with none is not counted
+	 *
+	 * @param rowId
+	 *            the id of the vehicle
+	 * @param fromDay
+	 *            the first day of the range (see toEpochDay, inclusive)
+	 * @param toDay
+	 *            the end of the range (see toEpochDay, exclusive)
+	 * @param bucket
+	 *            one of the BUCKET_ constants
+	 * @return a cursor with the period, city, road and freeway columns for
+	 *         every period that has fuelings, ordered by period
+	 */
+	public Cursor fetchCourseTypesByPeriod(long rowId, int fromDay, int toDay,
+			int bucket) {
+		long start = QueryTracer.start();
+		// x / 0 is NULL, which SUM skips
+		String types = " * 1.0 / (courseTypeCity + courseTypeRoad + courseTypeFreeway)";
+		Cursor result = mDb
+				.rawQuery(
+						"SELECT " + BUCKET_PERIODS[bucket] + " AS period,"
+								+ " SUM(distance * courseTypeCity" + types + ") AS city,"
+								+ " SUM(distance * courseTypeRoad" + types + ") AS road,"
+								+ " SUM(distance * courseTypeFreeway" + types + ") AS freeway"
+								+ " FROM Fueling WHERE idVehicle = ? AND day >= ? AND day < ?"
+								+ " GROUP BY period ORDER BY period",
 						new String[] { String.valueOf(rowId),
-								String.format("%02d", month),
-								String.valueOf(year) }, null, null, null, "1");
-		firstFuelingCursor.moveToFirst();
-		if (result.getCount() == 0 || firstFuelingCursor.getCount() == 0)
-			return 0;
-		int firstFuelingID = firstFuelingCursor.getInt(0);
-		int totalKms = result.getInt(0)
-				- getPreviousKms(firstFuelingID, (int) rowId);
-		double totalLitres = result.getDouble(1);
+								String.valueOf(fromDay), String.valueOf(toDay) });
+		return QueryTracer.end("fetchCourseTypesByPeriod", start, result);
+	}
+
+	/**
+	 * Fetches the fuelings of a vehicle within a range of days
+	 *
+	 * @param rowId
+	 *            the id of the vehicle
+	 * @param fromDay
+	 *            the first day of the range (see toEpochDay, inclusive)
+	 * @param toDay
+	 *            the end of the range (see toEpochDay, exclusive)
+	 * @return a cursor over the fuelings, ordered by day
+	 */
+	public Cursor fetchFuelingsByDayRange(long rowId, int fromDay, int toDay) {
+		long start = QueryTracer.start();
+		Cursor result = mDb.query("Fueling", new String[] { "_id", "quantity", "cost",
+				"kmsAtFueling", "drivingStyle", "fuelStation", "date", "day" },
+				"idVehicle=? AND day>=? AND day<?",
+				new String[] { String.valueOf(rowId), String.valueOf(fromDay),
+						String.valueOf(toDay) }, null, null, "day");
+		return QueryTracer.end("fetchFuelingsByDayRange", start, result);
+	}
 
-		return (float) ((totalLitres * 100) / totalKms);
+	/**
+	 * Fetches a page of fuelings for exporting, in _id order. The next page
+	 * starts after the last _id of the previous one, so every page is an index
+	 * range instead of an OFFSET that skips all the rows before it
+	 *
+	 * @param vehicleId
+	 *            the id of the vehicle, or 0 for every vehicle
+	 * @param fromDay
+	 *            the first day of the range (see toEpochDay, inclusive)
+	 * @param toDay
+	 *            the end of the range (see toEpochDay, exclusive)
+	 * @param afterId
+	 *            the last _id of the previous page, 0 for the first page
+	 * @param pageSize
+	 *            the maximum number of fuelings of the page
+	 * @return a cursor over the fuelings of the page
+	 */
+	public Cursor fetchFuelingPage(long vehicleId, int fromDay, int toDay,
+			long afterId, int pageSize) {
+		long start = QueryTracer.start();
+		String selection = "_id>? AND day>=? AND day<?";
+		String[] selectionArgs;
+		if (vehicleId > 0) {
+			selection += " AND idVehicle=?";
+			selectionArgs = new String[] { String.valueOf(afterId),
+					String.valueOf(fromDay), String.valueOf(toDay),
+					String.valueOf(vehicleId) };
+		} else
+			selectionArgs = new String[] { String.valueOf(afterId),
+					String.valueOf(fromDay), String.valueOf(toDay) };
+		Cursor result = mDb.query("Fueling", new String[] { "_id", "idVehicle",
+				"date", "kmsAtFueling", "fuelStation", "quantity", "cost",
+				"courseTypeCity", "courseTypeRoad", "courseTypeFreeway",
+				"drivingStyle" }, selection, selectionArgs, null, null, "_id",
+				String.valueOf(pageSize));
+		return QueryTracer.end("fetchFuelingPage", start, result);
+	}
+
+	/**
+	 * Fetches a page of vehicles for exporting, in _id order (see
+	 * fetchFuelingPage)
+	 *
+	 * @param vehicleId
+	 *            the id of the vehicle, or 0 for every vehicle
+	 * @param afterId
+	 *            the last _id of the previous page, 0 for the first page
+	 * @param pageSize
+	 *            the maximum number of vehicles of the page
+	 * @return a cursor over the vehicles of the page, with the make and fuel
+	 *         type names
+	 */
+	public Cursor fetchVehiclePage(long vehicleId, long afterId, int pageSize) {
+		long start = QueryTracer.start();
+		String selection = vehicleId > 0 ? " AND V._id = " + vehicleId : "";
+		Cursor result = mDb
+				.rawQuery(
+						"SELECT V._id, V.registration, M.name AS make, V.model, T.name AS fuelType,"
+								+ " V.year, V.fuelCapacity, V.kms"
+								+ " FROM Vehicle V LEFT JOIN Make M ON M._id = V.idMake"
+								+ " LEFT JOIN FuelType T ON T._id = V.idFuelType"
+								+ " WHERE V._id > ?" + selection
+								+ " ORDER BY V._id LIMIT " + pageSize,
+						new String[] { String.valueOf(afterId) });
+		return QueryTracer.end("fetchVehiclePage", start, result);
 	}
 
 	public int getTotalKms(long rowId) {
-		Cursor result = mDb.query("Fueling",
-				new String[] { "MAX(kmsAtFueling)" }, "idVehicle=?",
-				new String[] { String.valueOf(rowId) }, null, null, null);
-		result.moveToFirst();
-		return result.getInt(0) - this.getMinKms(rowId);
+		long start = QueryTracer.start();
+		Cursor result = fetchVehicleStats(rowId);
+		try {
+			if (!result.moveToFirst())
+				return 0;
+			return result.getInt(result.getColumnIndex("totalKms"));
+		} finally {
+			result.close();
+			QueryTracer.end("getTotalKms", start, 1);
+		}
 	}
 
 	public double getTotalLitres(long rowId) {
-		Cursor result = mDb.query("Fueling", new String[] { "SUM(quantity)" },
-				"idVehicle=?", new String[] { String.valueOf(rowId) }, null,
-				null, null);
-		result.moveToFirst();
-		return result.getDouble(0);
+		long start = QueryTracer.start();
+		try {
+			// there is no simpleQueryForDouble, the value comes back as text
+			String result = simpleQueryForString(TOTAL_LITRES_QUERY, rowId, null);
+			return result == null ? 0 : Double.parseDouble(result);
+		} finally {
+			QueryTracer.end("getTotalLitres", start, 1);
+		}
 	}
 
 	public float getTotalCost(long rowId) {
-		Cursor result = mDb.query("Fueling", new String[] { "SUM(cost)" },
-				"idVehicle=?", new String[] { String.valueOf(rowId) }, null,
-				null, null);
-		result.moveToFirst();
-		return result.getFloat(0);
+		long start = QueryTracer.start();
+		try {
+			String result = simpleQueryForString(TOTAL_COST_QUERY, rowId, null);
+			return result == null ? 0 : Float.parseFloat(result);
+		} finally {
+			QueryTracer.end("getTotalCost", start, 1);
+		}
+	}
+
+	/**
+	 * Finds the vehicle of the latest fueling in a fetchVehicles cursor,
+	 * without querying the database
+	 *
+	 * @param vehicles
+	 *            a cursor from fetchVehicles, its position is changed
+	 * @return the id of the vehicle, or 0 if there are no fuelings
+	 */
+	public static long getLastFueledVehicleID(Cursor vehicles) {
+		int lastFueled = vehicles.getColumnIndex("lastFueled");
+		int id = vehicles.getColumnIndex("_id");
+		for (int i = 0; vehicles.moveToPosition(i); i++)
+			if (vehicles.getInt(lastFueled) == 1)
+				return vehicles.getLong(id);
+		return 0;
 	}
 
 	public int getLastFuelingVehicleID() {
-		Cursor result = mDb.query("Fueling", new String[] { "idVehicle" },
-				null, null, null, null, "_id DESC", "1");
-		result.moveToFirst();
-		// if there are no fuelings, return 0
-		if (result.getCount() == 0)
-			return 0;
-		return result.getInt(0);
+		long start = QueryTracer.start();
+		try {
+			SQLiteStatement statement = getStatement(LAST_FUELING_VEHICLE_QUERY);
+			synchronized (statement) {
+				try {
+					return (int) statement.simpleQueryForLong();
+				} catch (SQLiteDoneException e) {
+					// if there are no fuelings, return 0
+					return 0;
+				}
+			}
+		} finally {
+			QueryTracer.end("getLastFuelingVehicleID", start, 1);
+		}
 	}
 
 }
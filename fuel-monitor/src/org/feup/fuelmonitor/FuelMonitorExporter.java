@@ -0,0 +1,190 @@
+package org.feup.fuelmonitor;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import android.database.Cursor;
+
+/**
+ * FuelMonitorExporter - Writes the vehicles and the fuelings as CSV or TSV.
+ * The rows are read one page at a time and streamed to the output, so the
+ * memory used doesn't grow with the size of the history.
+ */
+public class FuelMonitorExporter {
+
+	public static final char CSV = ',';
+	public static final char TSV = '\t';
+	private static final int PAGE_SIZE = 250;
+
+	private final FuelMonitorDbAdapter mDbHelper;
+	private final char mSeparator;
+
+	/**
+	 * @param dbHelper
+	 *            an open adapter
+	 * @param separator
+	 *            CSV or TSV
+	 */
+	public FuelMonitorExporter(FuelMonitorDbAdapter dbHelper, char separator) {
+		mDbHelper = dbHelper;
+		mSeparator = separator;
+	}
+
+	/**
+	 * Writes vehicles-*.csv and fuelings-*.csv (or .tsv) to the fuelmonitor
+	 * directory of the external storage, named after the registration of the
+	 * vehicle exported, if any, and the time of the export, so an export never
+	 * replaces another. Takes a while, must not be called on the main thread.
+	 *
+	 * @param vehicleId
+	 *            the id of the vehicle to export, or 0 for every vehicle
+	 * @param fromDay
+	 *            the first day of the fuelings (see toEpochDay, inclusive)
+	 * @param toDay
+	 *            the end of the fuelings (see toEpochDay, exclusive)
+	 * @return the number of fuelings written
+	 * @throws IOException
+	 *             if the files can't be written
+	 */
+	public int exportToStorage(long vehicleId, int fromDay, int toDay)
+			throws IOException {
+		File directory = VehiclePhotos.getDirectory();
+		directory.mkdirs();
+		String suffix = "-"
+				+ new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date())
+				+ (mSeparator == TSV ? ".tsv" : ".csv");
+		if (vehicleId != 0) {
+			String registration = mDbHelper.getRegistrationByID(vehicleId);
+			suffix = "-"
+					+ (registration == null ? String.valueOf(vehicleId)
+							: registration.replaceAll("[^A-Za-z0-9-]", ""))
+					+ suffix;
+		}
+
+		Writer out = open(new File(directory, "vehicles" + suffix));
+		try {
+			exportVehicles(out, vehicleId);
+		} finally {
+			out.close();
+		}
+		out = open(new File(directory, "fuelings" + suffix));
+		try {
+			return exportFuelings(out, vehicleId, fromDay, toDay);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the vehicles, with a header line
+	 *
+	 * @param vehicleId
+	 *            the id of the vehicle to export, or 0 for every vehicle
+	 * @return the number of vehicles written
+	 */
+	public int exportVehicles(Writer out, long vehicleId) throws IOException {
+		int count = 0;
+		long lastId = 0;
+		while (true) {
+			Cursor page = mDbHelper.fetchVehiclePage(vehicleId, lastId,
+					PAGE_SIZE);
+			try {
+				if (lastId == 0)
+					writeLine(out, page.getColumnNames());
+				lastId = writePage(out, page, lastId);
+				count += page.getCount();
+				if (page.getCount() < PAGE_SIZE)
+					return count;
+			} finally {
+				page.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes the fuelings, with a header line
+	 *
+	 * @param vehicleId
+	 *            the id of the vehicle whose fuelings are exported, or 0 for
+	 *            every vehicle
+	 * @param fromDay
+	 *            the first day (see toEpochDay, inclusive)
+	 * @param toDay
+	 *            the end of the range (see toEpochDay, exclusive)
+	 * @return the number of fuelings written
+	 */
+	public int exportFuelings(Writer out, long vehicleId, int fromDay,
+			int toDay) throws IOException {
+		int count = 0;
+		long lastId = 0;
+		while (true) {
+			Cursor page = mDbHelper.fetchFuelingPage(vehicleId, fromDay,
+					toDay, lastId, PAGE_SIZE);
+			try {
+				if (lastId == 0)
+					writeLine(out, page.getColumnNames());
+				lastId = writePage(out, page, lastId);
+				count += page.getCount();
+				if (page.getCount() < PAGE_SIZE)
+					return count;
+			} finally {
+				page.close();
+			}
+		}
+	}
+
+	private static Writer open(File file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+				file), "UTF-8"));
+	}
+
+	/**
+	 * Writes every row of a page, the first column must be the _id
+	 *
+	 * @return the _id of the last row, or lastId if the page is empty
+	 */
+	private long writePage(Writer out, Cursor page, long lastId)
+			throws IOException {
+		String[] values = new String[page.getColumnCount()];
+		while (page.moveToNext()) {
+			for (int i = 0; i < values.length; i++)
+				values[i] = page.getString(i);
+			writeLine(out, values);
+			lastId = page.getLong(0);
+		}
+		return lastId;
+	}
+
+	private void writeLine(Writer out, String[] values) throws IOException {
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0)
+				out.write(mSeparator);
+			if (values[i] != null)
+				writeValue(out, values[i]);
+		}
+		out.write('\n');
+	}
+
+	/**
+	 * Writes a value, quoted (CSV) or with its tabs and line breaks replaced
+	 * by spaces (TSV) when it would otherwise break the line
+	 */
+	private void writeValue(Writer out, String value) throws IOException {
+		if (mSeparator == TSV) {
+			out.write(value.replace('\t', ' ').replace('\n', ' ')
+					.replace('\r', ' '));
+		} else if (value.indexOf(mSeparator) >= 0 || value.indexOf('"') >= 0
+				|| value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+			out.write('"');
+			out.write(value.replace("\"", "\"\""));
+			out.write('"');
+		} else
+			out.write(value);
+	}
+}
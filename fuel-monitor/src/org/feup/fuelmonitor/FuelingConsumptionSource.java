@@ -0,0 +1,385 @@
+package org.feup.fuelmonitor;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.graphview.GraphView;
+
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+
+/**
+ * FuelingConsumptionSource - Gives a GraphView the consumption of every
+ * fueling of a vehicle, read from the database a page at a time with
+ * FuelMonitorDbAdapter.fetchConsumptionPageBefore, only for the window the
+ * graph asks for. The pages are counted from the latest fueling back, each
+ * one starting before the last row of the page after it, and the latest pages
+ * read are kept, so the whole history is never in memory at once.
+ * The graph never waits for the database: a page it pans or zooms to is read
+ * on the executor, 0 is given meanwhile, and the graph is told to read the
+ * values again once the page arrives. Every page read also keeps the lowest
+ * and highest consumption of each block of a few fuelings, which is all a
+ * zoomed out graph reads.
+ */
+public class FuelingConsumptionSource implements GraphView.AsyncSource {
+
+	public static final int PAGE_SIZE = 250;
+	private static final int MAX_PAGES = 40; /* 10000 fuelings */
+	/* The fuelings summarized together, a page holds a whole number of blocks */
+	private static final int BLOCK_SIZE = 5;
+	private static final int PAGE_BLOCKS = PAGE_SIZE / BLOCK_SIZE;
+
+	/**
+	 * The fuelings of a page, in kms order
+	 */
+	private static class Page {
+		final float[] consumptions;
+		final int[] days;
+
+		Page(int size) {
+			consumptions = new float[size];
+			days = new int[size];
+		}
+	}
+
+	/**
+	 * The lowest and the highest of the values added, and which came first
+	 */
+	private static class Extremes {
+		private float mLow;
+		private float mHigh;
+		private int mLowAt;
+		private int mHighAt;
+		private int mCount;
+
+		void add(float value) {
+			if (mCount == 0 || value < mLow) {
+				mLow = value;
+				mLowAt = mCount;
+			}
+			if (mCount == 0 || value > mHigh) {
+				mHigh = value;
+				mHighAt = mCount;
+			}
+			mCount++;
+		}
+
+		/**
+		 * @return the extreme that came first, 0 if nothing was added
+		 */
+		float getFirst() {
+			return mCount == 0 ? 0 : mLowAt <= mHighAt ? mLow : mHigh;
+		}
+
+		/**
+		 * @return the extreme that came last, 0 if nothing was added
+		 */
+		float getSecond() {
+			return mCount == 0 ? 0 : mLowAt <= mHighAt ? mHigh : mLow;
+		}
+
+		void clear() {
+			mCount = 0;
+		}
+	}
+
+	private final FuelMonitorDbAdapter mDbHelper;
+	private final long mVehicleId;
+	private final int mSize;
+	private final Executor mExecutor;
+	private final Handler mHandler;
+	private final LruCache<Integer, Page> mPages; /* page -> fuelings */
+	/* The kms and _id of the first fueling of each page read, where the page
+	 * before it starts, only used on the executor */
+	private final int[] mStartKms;
+	private final long[] mStartIds;
+	private int mKnownPages; /* the pages whose start is known, from the latest */
+	/* The first and the last extreme of the consumption of each block,
+	 * counted from the latest like the pages, guarded by this */
+	private final float[] mBlockFirst;
+	private final float[] mBlockSecond;
+	private final boolean[] mSummarized; /* the pages whose blocks are known */
+	private final boolean[] mRequested; /* the pages waiting for the executor */
+	private final Extremes mExtremes; /* used by getSummary */
+	private volatile Runnable mListener;
+	private final Runnable mNotify;
+
+	/**
+	 * Counts the fuelings of the vehicle, nothing else is read yet
+	 *
+	 * @param dbHelper
+	 *            an open adapter, kept open while the graph is shown
+	 * @param vehicleId
+	 *            the id of the vehicle
+	 * @param executor
+	 *            where the pages are read, a task at a time, e.g. the one
+	 *            computing the graph
+	 */
+	public FuelingConsumptionSource(FuelMonitorDbAdapter dbHelper,
+			long vehicleId, Executor executor) {
+		mDbHelper = dbHelper;
+		mVehicleId = vehicleId;
+		mExecutor = executor;
+		mHandler = new Handler(Looper.getMainLooper());
+		mSize = dbHelper.getNumFuelings(vehicleId);
+		mPages = new LruCache<Integer, Page>(MAX_PAGES);
+		int pageCount = (mSize + PAGE_SIZE - 1) / PAGE_SIZE;
+		mStartKms = new int[pageCount];
+		mStartIds = new long[pageCount];
+		int blockCount = (mSize + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		mBlockFirst = new float[blockCount];
+		mBlockSecond = new float[blockCount];
+		mSummarized = new boolean[pageCount];
+		mRequested = new boolean[pageCount];
+		mExtremes = new Extremes();
+		mNotify = new Runnable() {
+			public void run() {
+				Runnable listener = mListener;
+				if (listener != null)
+					listener.run();
+			}
+		};
+	}
+
+	/**
+	 * Reads the pages of the fuelings from (inclusive) to to (exclusive)
+	 * unless they're kept already, on the executor before the graph is shown
+	 *
+	 * @param cancelled
+	 *            checked between pages, the reading stops once it's set
+	 * @return false if the reading was cancelled
+	 */
+	public boolean preload(int from, int to, AtomicBoolean cancelled) {
+		from = Math.max(from, 0);
+		to = Math.min(to, mSize);
+		if (from >= to)
+			return !cancelled.get();
+		// the later the fueling, the lower its page
+		for (int page = getPage(to - 1); page <= getPage(from); page++) {
+			if (cancelled.get())
+				return false;
+			getPageValues(page);
+		}
+		return !cancelled.get();
+	}
+
+	public void setOnChangeListener(Runnable listener) {
+		mListener = listener;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public int getSeriesCount() {
+		return 1;
+	}
+
+	/**
+	 * Copies the consumption in l/100km of the fuelings from (inclusive) to
+	 * to (exclusive), 0 for a fueling without kms driven or not read yet
+	 */
+	public void getValues(int from, int to, float[] values) {
+		for (int i = from; i < to;) {
+			int page = getPage(i);
+			int offset = getOffset(page, i);
+			int count = Math.min(getPageSize(page) - offset, to - i);
+			Page fuelings = mPages.get(page);
+			if (fuelings == null) {
+				request(page);
+				for (int k = 0; k < count; k++)
+					values[i - from + k] = 0;
+			} else
+				System.arraycopy(fuelings.consumptions, offset, values, i
+						- from, count);
+			i += count;
+		}
+	}
+
+	/**
+	 * Summarizes a run by the blocks it covers once it holds a couple of
+	 * blocks, or when the pages of the runs wouldn't fit in the pages kept; a
+	 * run may then take a few fuelings of the runs beside it. The fuelings not
+	 * read yet are left out, a run without any is 0
+	 */
+	public void getSummary(int from, int to, int per, float[] values) {
+		Extremes extremes = mExtremes;
+		boolean blocks = per >= 2 * BLOCK_SIZE
+				|| to - from > MAX_PAGES / 2 * PAGE_SIZE;
+		for (int start = from, n = 0; start < to; start += per, n += 2) {
+			int end = Math.min(start + per, to);
+			if (blocks) {
+				synchronized (this) {
+					// from the earliest block to the latest
+					for (int block = getBlock(start); block >= getBlock(end - 1); block--) {
+						if (!mSummarized[block / PAGE_BLOCKS]) {
+							request(block / PAGE_BLOCKS);
+							continue;
+						}
+						extremes.add(mBlockFirst[block]);
+						extremes.add(mBlockSecond[block]);
+					}
+				}
+			} else {
+				for (int i = start; i < end;) {
+					int page = getPage(i);
+					int offset = getOffset(page, i);
+					int count = Math.min(getPageSize(page) - offset, end - i);
+					Page fuelings = mPages.get(page);
+					if (fuelings == null)
+						request(page);
+					else
+						for (int k = offset; k < offset + count; k++)
+							extremes.add(fuelings.consumptions[k]);
+					i += count;
+				}
+			}
+			values[n] = extremes.getFirst();
+			values[n + 1] = extremes.getSecond();
+			extremes.clear();
+		}
+	}
+
+	/**
+	 * @return the date of the fueling, as dd-MM-yyyy, or null if it's not
+	 *         read yet
+	 */
+	public String getLabel(int index) {
+		int page = getPage(index);
+		Page fuelings = mPages.get(page);
+		if (fuelings == null) {
+			request(page);
+			return null;
+		}
+		int day = fuelings.days[getOffset(page, index)];
+		if (day == 0)
+			return null;
+		// yyyy-MM-dd shown as dd-MM-yyyy
+		String date = FuelMonitorDbAdapter.toDateString(day);
+		return date.substring(8, 10) + "-" + date.substring(5, 7) + "-"
+				+ date.substring(0, 4);
+	}
+
+	public String getSeriesName(int series) {
+		return null;
+	}
+
+	/**
+	 * @return the page of a fueling, 0 for the latest fuelings
+	 */
+	private int getPage(int index) {
+		return (mSize - 1 - index) / PAGE_SIZE;
+	}
+
+	/**
+	 * @return the block of a fueling, 0 for the latest fuelings
+	 */
+	private int getBlock(int index) {
+		return (mSize - 1 - index) / BLOCK_SIZE;
+	}
+
+	/**
+	 * @return the position of a fueling in its page
+	 */
+	private int getOffset(int page, int index) {
+		return index - Math.max(mSize - (page + 1) * PAGE_SIZE, 0);
+	}
+
+	/**
+	 * @return the fuelings of a page, fewer than PAGE_SIZE for the earliest
+	 */
+	private int getPageSize(int page) {
+		return Math.min(mSize - page * PAGE_SIZE, PAGE_SIZE);
+	}
+
+	/**
+	 * Reads a page on the executor, unless it's waiting already, and tells
+	 * the graph once it's read
+	 */
+	private synchronized void request(final int page) {
+		if (mRequested[page])
+			return;
+		mRequested[page] = true;
+		try {
+			mExecutor.execute(new Runnable() {
+				public void run() {
+					// not if the graph shows another source by now
+					if (mListener != null)
+						getPageValues(page);
+					synchronized (FuelingConsumptionSource.this) {
+						mRequested[page] = false;
+					}
+					mHandler.post(mNotify);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the activity is being destroyed
+			mRequested[page] = false;
+		}
+	}
+
+	/**
+	 * Returns a page, reading it if it isn't kept. A page whose start isn't
+	 * known yet is reached by reading the pages after it first. Only called
+	 * on the executor
+	 */
+	private Page getPageValues(int page) {
+		Page fuelings = mPages.get(page);
+		if (fuelings != null)
+			return fuelings;
+		while (mKnownPages < page)
+			readPage(mKnownPages);
+		return readPage(page);
+	}
+
+	/**
+	 * Reads a page, whose start must be known, keeps it and summarizes its
+	 * blocks
+	 */
+	private Page readPage(int page) {
+		int size = getPageSize(page);
+		Page fuelings = new Page(size);
+		Cursor rows = mDbHelper.fetchConsumptionPageBefore(mVehicleId,
+				page == 0 ? Integer.MAX_VALUE : mStartKms[page - 1],
+				page == 0 ? Long.MAX_VALUE : mStartIds[page - 1], size);
+		try {
+			// the rows come from the latest back, fuelings deleted since the
+			// count leave zeros at the start of the page
+			for (int i = size - 1; i >= 0 && rows.moveToNext(); i--) {
+				fuelings.consumptions[i] = rows.getFloat(2);
+				fuelings.days[i] = rows.getInt(3);
+				mStartKms[page] = rows.getInt(1);
+				mStartIds[page] = rows.getLong(0);
+			}
+		} finally {
+			rows.close();
+		}
+		mKnownPages = Math.max(mKnownPages, page + 1);
+		summarize(page, fuelings.consumptions);
+		mPages.put(page, fuelings);
+		return fuelings;
+	}
+
+	/**
+	 * Keeps the extremes of the consumption of every block of a page
+	 */
+	private synchronized void summarize(int page, float[] consumptions) {
+		Extremes extremes = new Extremes();
+		int start = Math.max(mSize - (page + 1) * PAGE_SIZE, 0);
+		for (int i = 0; i < consumptions.length; i++) {
+			extremes.add(consumptions[i]);
+			int block = getBlock(start + i);
+			// the last fueling of its block
+			if (i == consumptions.length - 1
+					|| getBlock(start + i + 1) != block) {
+				mBlockFirst[block] = extremes.getFirst();
+				mBlockSecond[block] = extremes.getSecond();
+				extremes.clear();
+			}
+		}
+		mSummarized[page] = true;
+	}
+}
@@ -1,37 +1,57 @@
 package org.feup.fuelmonitor;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-
 import org.w3c.dom.Text;
 
 import android.content.Intent;
 import android.database.Cursor;
 import android.os.Bundle;
-import android.util.Log;
+import android.support.v4.app.LoaderManager.LoaderCallbacks;
+import android.support.v4.content.Loader;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.Button;
-import android.widget.SimpleCursorAdapter;
-import android.widget.SimpleCursorAdapter.ViewBinder;
+import android.widget.ListView;
 import android.widget.TextView;
 
-import com.actionbarsherlock.app.SherlockListActivity;
+import com.actionbarsherlock.app.SherlockFragmentActivity;
 
 /**
  * Lists the fueling in a activity
  * 
  */
-public class FuelingList extends SherlockListActivity {
+public class FuelingList extends SherlockFragmentActivity implements
+		LoaderCallbacks<Cursor> {
 
-	private static final String TAG = "FuelMonitorFuelingList";
+	private static final int FUELINGS_LOADER = 0;
+	private static final int TOTALS_LOADER = 1;
+	private static final int MENU_EXPORT_CSV = Menu.FIRST;
+	private static final int MENU_EXPORT_TSV = Menu.FIRST + 1;
 	private FuelMonitorDbAdapter mDbHelper;
 	private long mVehicleID;
+	private ListView mListView;
+	private FuelingPageAdapter mFuelingAdapter;
+
+	/* The loader of the fueling rows, whose data isn't a cursor */
+	private final LoaderCallbacks<FuelingPageLoader.Rows> mFuelingCallbacks = new LoaderCallbacks<FuelingPageLoader.Rows>() {
+		public Loader<FuelingPageLoader.Rows> onCreateLoader(int id,
+				Bundle args) {
+			return new FuelingPageLoader(FuelingList.this, mVehicleID);
+		}
+
+		public void onLoadFinished(Loader<FuelingPageLoader.Rows> loader,
+				FuelingPageLoader.Rows data) {
+			mFuelingAdapter.setRows(data);
+		}
+
+		public void onLoaderReset(Loader<FuelingPageLoader.Rows> loader) {
+			mFuelingAdapter.setRows(null);
+		}
+	};
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -41,12 +61,15 @@ public class FuelingList extends SherlockListActivity {
 		mDbHelper = new FuelMonitorDbAdapter(this);
 		Button addFueling = (Button) findViewById(R.id.fuelinglist_addfueling);
 
+		mListView = (ListView) findViewById(android.R.id.list);
+		mListView.setEmptyView(findViewById(android.R.id.empty));
+
 		mDbHelper.open();
 
 		fillData();
-		fillTotals();
+		getSupportLoaderManager().initLoader(TOTALS_LOADER, null, this);
 
-		registerForContextMenu(getListView());
+		registerForContextMenu(mListView);
 
 		addFueling.setOnClickListener(new View.OnClickListener() {
 
@@ -59,6 +82,33 @@ public class FuelingList extends SherlockListActivity {
 		});
 	}
 
+	/**
+	 * Populates the options menu with the export actions
+	 */
+	@Override
+	public boolean onCreateOptionsMenu(com.actionbarsherlock.view.Menu menu) {
+		menu.add(0, MENU_EXPORT_CSV, 0, R.string.export_csv);
+		menu.add(0, MENU_EXPORT_TSV, 0, R.string.export_tsv);
+		return super.onCreateOptionsMenu(menu);
+	}
+
+	/**
+	 * Exports the vehicle and its fuelings when an export action is selected
+	 */
+	@Override
+	public boolean onOptionsItemSelected(
+			com.actionbarsherlock.view.MenuItem item) {
+		switch (item.getItemId()) {
+		case MENU_EXPORT_CSV:
+			new ExportTask(this, FuelMonitorExporter.CSV, mVehicleID).execute();
+			return true;
+		case MENU_EXPORT_TSV:
+			new ExportTask(this, FuelMonitorExporter.TSV, mVehicleID).execute();
+			return true;
+		}
+		return super.onOptionsItemSelected(item);
+	}
+
 	/**
 	 * Populates the context menu
 	 */
@@ -67,6 +117,9 @@ public class FuelingList extends SherlockListActivity {
 	public void onCreateContextMenu(ContextMenu menu, View v,
 			ContextMenuInfo menuInfo) {
 		super.onCreateContextMenu(menu, v, menuInfo);
+		// a row that isn't loaded yet has no fueling to act on
+		if (((AdapterContextMenuInfo) menuInfo).id < 0)
+			return;
 		menu.add(0, Menu.FIRST, 0, R.string.fueling_edit);
 		menu.add(0, Menu.FIRST + 1, 0, R.string.fueling_delete);
 	}
@@ -85,140 +138,80 @@ public class FuelingList extends SherlockListActivity {
 			startActivityForResult(i, 1);
 			return true;
 		case Menu.FIRST + 1:
+			// the list and the totals are reloaded by their loaders
 			mDbHelper.deleteFueling(id);
-			fillData();
-			fillTotals();
 			return true;
 		}
 		return super.onContextItemSelected(item);
 	}
 
 	/**
-	 * Fills the list with the fuelling data
+	 * Fills the list with the fuelling data, a few pages at a time: the pages
+	 * loaded follow the rows shown as the list is scrolled
 	 */
 	private void fillData() {
-		Cursor fuelingCursor = mDbHelper.fetchFuelingsByVehicleID(mVehicleID);
-		// TODO Use a CursorLoader (startManagingCursor is deprecated)
-		startManagingCursor(fuelingCursor);
-		SimpleCursorAdapter fuelingAdapter = new SimpleCursorAdapter(this,
-				R.layout.fuelingrow, fuelingCursor, new String[] { "quantity",
-						"cost", "kmsAtFueling", "_id", "drivingStyle", "_id", "_id", "_id",
-						"fuelStation", "date" }, new int[] {
-						R.id.fuelingRow_quantity, R.id.fuelingRow_cost,
-						R.id.fuelingRow_kms, R.id.fuelingRow_avgConsumption,
-						R.id.fuelingRow_drivingStyle,
-						R.id.fuelingRow_courseTypeCity, R.id.fuelingRow_courseTypeRoad, R.id.fuelingRow_courseTypeFreeway,
-						R.id.fuelingRow_fuelStation, R.id.fuelingRow_date });
-		fuelingAdapter.setViewBinder(new ViewBinder() {
+		mFuelingAdapter = new FuelingPageAdapter(this);
+		mListView.setAdapter(mFuelingAdapter);
+		mListView.setOnScrollListener(new AbsListView.OnScrollListener() {
+			public void onScrollStateChanged(AbsListView view, int scrollState) {
+			}
 
-			@Override
-			public boolean setViewValue(View view, Cursor cursor,
-					int columnIndex) {
-				if (view.getId() == R.id.fuelingRow_date) {
-					TextView dateText = (TextView) view;
-					try {
-						SimpleDateFormat date = new SimpleDateFormat(
-								"yyyy-MM-dd");
-						date.parse(cursor.getString(columnIndex));
-						Calendar c = date.getCalendar();
-						dateText.setText(String.format("%02d-%02d-%d",
-								c.get(Calendar.DAY_OF_MONTH),
-								(c.get(Calendar.MONTH) + 1),
-								c.get(Calendar.YEAR)));
-					} catch (ParseException e) {
-						Log.e(TAG, "Error parsing date from database");
-						return false;
-					}
-					return true;
-				}
-				if (view.getId() == R.id.fuelingRow_courseTypeCity) {
-					TextView courseTypeCityText = (TextView) view;
-					boolean courseTypeCity = mDbHelper
-							.getFuelingCourseTypeCity(cursor
-									.getInt(columnIndex)) == 1;
-					if (courseTypeCity)
-						courseTypeCityText.setText("C");
-					return true;
-				}
-				if (view.getId() == R.id.fuelingRow_courseTypeRoad) {
-					TextView courseTypeRoadText = (TextView) view;
-					boolean courseTypeRoad = mDbHelper
-							.getFuelingCourseTypeRoad(cursor
-									.getInt(columnIndex)) == 1;
-					if (courseTypeRoad)
-						courseTypeRoadText.setText("E");
-					return true;
+			public void onScroll(AbsListView view, int firstVisibleItem,
+					int visibleItemCount, int totalItemCount) {
+				if (totalItemCount > 0) {
+					Loader<FuelingPageLoader.Rows> loader = getSupportLoaderManager()
+							.getLoader(FUELINGS_LOADER);
+					if (loader != null)
+						((FuelingPageLoader) loader).loadAround(firstVisibleItem
+								+ visibleItemCount / 2);
 				}
-				if (view.getId() == R.id.fuelingRow_courseTypeFreeway) {
-					TextView courseTypeFreewayText = (TextView) view;
-					boolean courseTypeFreeway = mDbHelper
-							.getFuelingCourseTypeFreeway(cursor
-									.getInt(columnIndex)) == 1;
-					if (courseTypeFreeway)
-						courseTypeFreewayText.setText("AE");
-					return true;
-				}
-				if (view.getId() == R.id.fuelingRow_drivingStyle) {
-					int drivingStyle = cursor.getInt(columnIndex);
-					TextView drivingStyleText = (TextView) view;
-					switch (drivingStyle) {
-					case 1:
-						drivingStyleText
-								.setText(getString(R.string.fueling_list_drivingStyle_calm));
-						break;
-					case 2:
-						drivingStyleText
-								.setText(getString(R.string.fueling_list_drivingStyle_normal));
-						break;
-					case 3:
-						drivingStyleText
-								.setText(getString(R.string.fueling_list_drivingStyle_agressive));
-						break;
-					}
-					return true;
-				}
-				if (view.getId() == R.id.fuelingRow_avgConsumption) {
-					TextView avgConsumptionText = (TextView) view;
-					float avgConsumption = (mDbHelper
-							.getAverageFuelConsumptionByFuelingID(cursor
-									.getInt(columnIndex)));
-					if (avgConsumption > 0)
-						avgConsumptionText.setText(String.format(
-								"%.1f l/100Km", avgConsumption));
-					return true;
-				}
-				if (view instanceof TextView) {
-					TextView text = (TextView) view;
-					text.setText(cursor.getString(columnIndex));
-					return true;
-				}
-				return false;
 			}
 		});
-		getListView().setAdapter(fuelingAdapter);
+		getSupportLoaderManager().initLoader(FUELINGS_LOADER, null,
+				mFuelingCallbacks);
 	}
 
-	@Override
-	protected void onActivityResult(int requestCode, int resultCode, Intent data) {
-		super.onActivityResult(requestCode, resultCode, data);
-		// update totals on edit or new fueling
-		if (requestCode == 1 || requestCode == 2) {
-			fillTotals();
-		}
+	/**
+	 * Creates the loader of the totals
+	 */
+	public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+		return new FuelMonitorCursorLoader(this,
+				FuelMonitorCursorLoader.VEHICLE_STATS, mVehicleID);
+	}
+
+	/**
+	 * Shows the totals once they are loaded
+	 */
+	public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+		fillTotals(data);
 	}
 
-	private void fillTotals() {
-		if (mDbHelper.getNumFuelings(mVehicleID) > 0) {
-			TextView totalkms = (TextView) findViewById(R.id.fuelinglist_totalkms);
-			TextView totallitres = (TextView) findViewById(R.id.fuelinglist_totallitres);
-			TextView totalcost = (TextView) findViewById(R.id.fuelinglist_totalcost);
+	public void onLoaderReset(Loader<Cursor> loader) {
+	}
 
-			totalkms.setText(String.valueOf(mDbHelper.getTotalKms(mVehicleID))
-					+ " Kms");
+	/**
+	 * Fills the totals of the vehicle
+	 *
+	 * @param stats
+	 *            the cursor returned by fetchVehicleStats
+	 */
+	private void fillTotals(Cursor stats) {
+		TextView totalkms = (TextView) findViewById(R.id.fuelinglist_totalkms);
+		TextView totallitres = (TextView) findViewById(R.id.fuelinglist_totallitres);
+		TextView totalcost = (TextView) findViewById(R.id.fuelinglist_totalcost);
+		if (stats.moveToFirst()
+				&& stats.getInt(stats.getColumnIndex("numFuelings")) > 0) {
+			totalkms.setText(String.valueOf(stats.getInt(stats
+					.getColumnIndex("totalKms"))) + " Kms");
 			totallitres.setText(String.format("%.1f l",
-					mDbHelper.getTotalLitres(mVehicleID)));
+					stats.getDouble(stats.getColumnIndex("totalLitres"))));
 			totalcost.setText(String.format("%.1f ",
-					mDbHelper.getTotalCost(mVehicleID)));
+					stats.getFloat(stats.getColumnIndex("totalCost"))));
+		} else {
+			// the last fueling was deleted
+			totalkms.setText("");
+			totallitres.setText("");
+			totalcost.setText("");
 		}
 	}
 
@@ -0,0 +1,149 @@
+package org.feup.fuelmonitor;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * FuelingPageAdapter - Shows the rows of a FuelingPageLoader in the fueling
+ * list, with the fuelingrow layout. The list has a row for every fueling, the
+ * ones outside the window loaded are shown empty until the window gets to
+ * them
+ */
+public class FuelingPageAdapter extends BaseAdapter {
+
+	private final Context mCtx;
+	private final LayoutInflater mInflater;
+	private FuelingPageLoader.Rows mRows;
+
+	/**
+	 * The views of a row, kept in its tag so they're only looked up once
+	 */
+	private static class RowViews {
+		TextView quantity;
+		TextView cost;
+		TextView kms;
+		TextView avgConsumption;
+		TextView drivingStyle;
+		TextView courseTypeCity;
+		TextView courseTypeRoad;
+		TextView courseTypeFreeway;
+		TextView fuelStation;
+		TextView date;
+	}
+
+	public FuelingPageAdapter(Context ctx) {
+		mCtx = ctx;
+		mInflater = LayoutInflater.from(ctx);
+	}
+
+	/**
+	 * Replaces the rows shown
+	 *
+	 * @param rows
+	 *            the rows, null to show none
+	 */
+	public void setRows(FuelingPageLoader.Rows rows) {
+		mRows = rows;
+		notifyDataSetChanged();
+	}
+
+	public int getCount() {
+		return mRows == null ? 0 : mRows.count;
+	}
+
+	/**
+	 * @return the row, or null if it isn't loaded
+	 */
+	public FuelingRow getItem(int position) {
+		return mRows.get(position);
+	}
+
+	/**
+	 * @return the _id of the fueling, for the context menu, or -1 if it isn't
+	 *         loaded
+	 */
+	public long getItemId(int position) {
+		FuelingRow row = mRows.get(position);
+		return row == null ? -1 : row.id;
+	}
+
+	public View getView(int position, View convertView, ViewGroup parent) {
+		View view = convertView;
+		RowViews views;
+		if (view == null) {
+			view = mInflater.inflate(R.layout.fuelingrow, parent, false);
+			views = new RowViews();
+			views.quantity = (TextView) view
+					.findViewById(R.id.fuelingRow_quantity);
+			views.cost = (TextView) view.findViewById(R.id.fuelingRow_cost);
+			views.kms = (TextView) view.findViewById(R.id.fuelingRow_kms);
+			views.avgConsumption = (TextView) view
+					.findViewById(R.id.fuelingRow_avgConsumption);
+			views.drivingStyle = (TextView) view
+					.findViewById(R.id.fuelingRow_drivingStyle);
+			views.courseTypeCity = (TextView) view
+					.findViewById(R.id.fuelingRow_courseTypeCity);
+			views.courseTypeRoad = (TextView) view
+					.findViewById(R.id.fuelingRow_courseTypeRoad);
+			views.courseTypeFreeway = (TextView) view
+					.findViewById(R.id.fuelingRow_courseTypeFreeway);
+			views.fuelStation = (TextView) view
+					.findViewById(R.id.fuelingRow_fuelStation);
+			views.date = (TextView) view.findViewById(R.id.fuelingRow_date);
+			view.setTag(views);
+		} else
+			views = (RowViews) view.getTag();
+
+		FuelingRow row = mRows.get(position);
+		if (row == null) {
+			// not loaded yet
+			views.quantity.setText("");
+			views.cost.setText("");
+			views.kms.setText("");
+			views.fuelStation.setText("");
+			views.date.setText("");
+			views.courseTypeCity.setText("");
+			views.courseTypeRoad.setText("");
+			views.courseTypeFreeway.setText("");
+			views.drivingStyle.setText("");
+			views.avgConsumption.setText("");
+			return view;
+		}
+		views.quantity.setText(row.quantity);
+		views.cost.setText(row.cost);
+		views.kms.setText(String.valueOf(row.kms));
+		views.fuelStation.setText(row.fuelStation);
+		// yyyy-MM-dd shown as dd-MM-yyyy
+		views.date.setText(row.date.substring(8, 10) + "-"
+				+ row.date.substring(5, 7) + "-" + row.date.substring(0, 4));
+		views.courseTypeCity.setText(row.courseTypeCity ? "C" : "");
+		views.courseTypeRoad.setText(row.courseTypeRoad ? "E" : "");
+		views.courseTypeFreeway.setText(row.courseTypeFreeway ? "AE" : "");
+		switch (row.drivingStyle) {
+		case 1:
+			views.drivingStyle.setText(mCtx
+					.getString(R.string.fueling_list_drivingStyle_calm));
+			break;
+		case 2:
+			views.drivingStyle.setText(mCtx
+					.getString(R.string.fueling_list_drivingStyle_normal));
+			break;
+		case 3:
+			views.drivingStyle.setText(mCtx
+					.getString(R.string.fueling_list_drivingStyle_agressive));
+			break;
+		default:
+			views.drivingStyle.setText("");
+		}
+		if (row.avgConsumption > 0)
+			views.avgConsumption.setText(String.format("%.1f l/100Km",
+					row.avgConsumption));
+		else
+			views.avgConsumption.setText("");
+		return view;
+	}
+}
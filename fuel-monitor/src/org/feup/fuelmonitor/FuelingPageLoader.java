@@ -0,0 +1,252 @@
+package org.feup.fuelmonitor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.v4.content.AsyncTaskLoader;
+
+/**
+ * FuelingPageLoader - Loads a window of the fueling list of a vehicle, a few
+ * pages around the position shown, with FuelMonitorDbAdapter.fetchFuelingRowsPage.
+ * loadAround() moves the window as the list scrolls, the pages it leaves are
+ * dropped, so the rows held don't grow with the history. The start of every
+ * page read, the kms and _id of the last row of the page before, is kept, so
+ * scrolling back reads a page with a single query; the starts are forgotten
+ * when the data changes.
+ */
+public class FuelingPageLoader extends
+		AsyncTaskLoader<FuelingPageLoader.Rows> {
+
+	/**
+	 * The rows of a window of the fueling list
+	 */
+	public static class Rows {
+		public final int count; /* the fuelings of the vehicle */
+		public final int start; /* the position of the first row of list */
+		public final List<FuelingRow> list;
+
+		Rows(int count, int start, List<FuelingRow> list) {
+			this.count = count;
+			this.start = start;
+			this.list = list;
+		}
+
+		/**
+		 * @return the row at a position of the list, or null if it's outside
+		 *         the window
+		 */
+		public FuelingRow get(int position) {
+			int i = position - start;
+			return i >= 0 && i < list.size() ? list.get(i) : null;
+		}
+
+		/**
+		 * @return true if the window holds the rows from first to last
+		 *         (inclusive) that exist
+		 */
+		boolean covers(int first, int last) {
+			first = Math.max(first, 0);
+			last = Math.min(last, count - 1);
+			return first >= start && last < start + list.size()
+					|| first > last;
+		}
+	}
+
+	public static final int PAGE_SIZE = 50;
+	private static final int WINDOW_PAGES = 5; /* pages held */
+	/* Rows that must be loaded on each side of the position shown */
+	private static final int MARGIN = PAGE_SIZE;
+
+	private final ForceLoadContentObserver mObserver;
+	private final long mVehicleId;
+	private FuelMonitorDbAdapter mDbHelper;
+	/* Written on the main thread, read by the load */
+	private volatile Rows mRows; /* The rows delivered last */
+	private volatile int mPosition; /* The position the window is loaded around */
+	private volatile boolean mChanged; /* The rows delivered are out of date */
+	private boolean mLoading;
+
+	/* The start of the pages read, only used by the load */
+	private int[] mStartKms = new int[16];
+	private long[] mStartIds = new long[16];
+	private int mKnownPages; /* the pages whose start is known, from the first */
+
+	/**
+	 * @param context
+	 *            the context within which to work
+	 * @param vehicleId
+	 *            the id of the vehicle whose fuelings are listed
+	 */
+	public FuelingPageLoader(Context context, long vehicleId) {
+		super(context);
+		mObserver = new ForceLoadContentObserver();
+		mVehicleId = vehicleId;
+		// the cursors are closed once read, so the loader watches the uri
+		context.getContentResolver().registerContentObserver(
+				FuelMonitorDbAdapter.CONTENT_URI, false, mObserver);
+	}
+
+	/**
+	 * Moves the window to a position of the list, unless the rows around it
+	 * are loaded already
+	 *
+	 * @param position
+	 *            the position shown, e.g. the middle of the visible rows
+	 */
+	public void loadAround(int position) {
+		mPosition = position;
+		Rows rows = mRows;
+		if (mLoading || rows == null
+				|| rows.covers(position - MARGIN, position + MARGIN))
+			return;
+		forceLoad();
+	}
+
+	/**
+	 * Reads the pages of the window on the loader thread, a page per query so
+	 * no cursor holds more than a page. The pages the previous window holds
+	 * are taken from it, unless the data changed since
+	 */
+	@Override
+	public Rows loadInBackground() {
+		if (mDbHelper == null)
+			mDbHelper = new FuelMonitorDbAdapter(getContext()).open();
+		Rows previous = mRows;
+		if (mChanged) {
+			mChanged = false;
+			previous = null;
+			mKnownPages = 0;
+		}
+		int count = mDbHelper.getNumFuelings(mVehicleId);
+		int pageCount = (count + PAGE_SIZE - 1) / PAGE_SIZE;
+		int center = Math.max(Math.min(mPosition, count - 1), 0) / PAGE_SIZE;
+		int last = Math.min(Math.max(center + WINDOW_PAGES / 2 + 1,
+				WINDOW_PAGES), pageCount);
+		int first = Math.max(last - WINDOW_PAGES, 0);
+
+		ArrayList<FuelingRow> list = new ArrayList<FuelingRow>(
+				(last - first) * PAGE_SIZE);
+		for (int page = first; page < last; page++) {
+			int start = page * PAGE_SIZE;
+			if (previous != null
+					&& previous.covers(start, start + PAGE_SIZE - 1)) {
+				int from = start - previous.start;
+				list.addAll(previous.list.subList(from, Math.min(
+						from + PAGE_SIZE, previous.list.size())));
+			} else if (!readPage(page, list))
+				break;
+		}
+		return new Rows(list.isEmpty() ? 0 : count, first * PAGE_SIZE, list);
+	}
+
+	/**
+	 * Reads a page, after reading the pages before it whose start isn't known
+	 * yet (without keeping their rows)
+	 *
+	 * @return false if the page is not full, it's the last one
+	 */
+	private boolean readPage(int page, List<FuelingRow> list) {
+		if (mKnownPages == 0)
+			setStart(0, Integer.MIN_VALUE, 0);
+		while (mKnownPages <= page)
+			if (!readPage(mKnownPages - 1, null))
+				return false;
+		Cursor rows = mDbHelper.fetchFuelingRowsPage(mVehicleId,
+				mStartKms[page], mStartIds[page], PAGE_SIZE);
+		try {
+			int read = 0;
+			int kms = 0;
+			long id = 0;
+			while (rows.moveToNext()) {
+				if (list != null)
+					list.add(new FuelingRow(rows));
+				kms = rows.getInt(3);
+				id = rows.getLong(0);
+				read++;
+			}
+			if (read < PAGE_SIZE)
+				return false;
+			setStart(page + 1, kms, id);
+			return true;
+		} finally {
+			rows.close();
+		}
+	}
+
+	/**
+	 * Keeps the start of a page, the kms and _id of the row before it
+	 */
+	private void setStart(int page, int kms, long id) {
+		if (page == mStartKms.length) {
+			int[] startKms = new int[page * 2];
+			long[] startIds = new long[page * 2];
+			System.arraycopy(mStartKms, 0, startKms, 0, page);
+			System.arraycopy(mStartIds, 0, startIds, 0, page);
+			mStartKms = startKms;
+			mStartIds = startIds;
+		}
+		mStartKms[page] = kms;
+		mStartIds[page] = id;
+		mKnownPages = Math.max(mKnownPages, page + 1);
+	}
+
+	/**
+	 * Delivers the rows to the activity, and moves the window again if the
+	 * list scrolled away meanwhile
+	 */
+	@Override
+	public void deliverResult(Rows rows) {
+		mLoading = false;
+		if (isReset())
+			return;
+		mRows = rows;
+		if (isStarted())
+			super.deliverResult(rows);
+		if (isStarted() && !mChanged)
+			loadAround(mPosition);
+	}
+
+	@Override
+	protected void onForceLoad() {
+		super.onForceLoad();
+		mLoading = true;
+	}
+
+	/**
+	 * Called when the data changes: the page starts are read again, around
+	 * the position shown
+	 */
+	@Override
+	public void onContentChanged() {
+		mChanged = true;
+		super.onContentChanged();
+	}
+
+	@Override
+	protected void onStartLoading() {
+		if (mRows != null)
+			deliverResult(mRows);
+		if (takeContentChanged() || mRows == null)
+			forceLoad();
+	}
+
+	@Override
+	protected void onStopLoading() {
+		cancelLoad();
+		mLoading = false;
+	}
+
+	@Override
+	protected void onReset() {
+		super.onReset();
+		onStopLoading();
+
+		getContext().getContentResolver().unregisterContentObserver(mObserver);
+		mRows = null;
+		if (mDbHelper != null)
+			mDbHelper.close();
+		mDbHelper = null;
+	}
+}
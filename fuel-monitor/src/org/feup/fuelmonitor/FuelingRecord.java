@@ -0,0 +1,35 @@
+package org.feup.fuelmonitor;
+
+/**
+ * FuelingRecord - The values of one fueling, as taken by
+ * FuelMonitorDbAdapter.importFuelings (same meaning as the addFueling
+ * parameters)
+ */
+public class FuelingRecord {
+
+	public final String date; /* yyyy-MM-dd */
+	public final int kms;
+	public final String fuelStation;
+	public final float quantity;
+	public final float cost;
+	public final int courseTypeCity;
+	public final int courseTypeRoad;
+	public final int courseTypeFreeway;
+	public final int drivingStyle;
+	public final long vehicle;
+
+	public FuelingRecord(String date, int kms, String fuelStation,
+			float quantity, float cost, int courseTypeCity, int courseTypeRoad,
+			int courseTypeFreeway, int drivingStyle, long vehicle) {
+		this.date = date;
+		this.kms = kms;
+		this.fuelStation = fuelStation;
+		this.quantity = quantity;
+		this.cost = cost;
+		this.courseTypeCity = courseTypeCity;
+		this.courseTypeRoad = courseTypeRoad;
+		this.courseTypeFreeway = courseTypeFreeway;
+		this.drivingStyle = drivingStyle;
+		this.vehicle = vehicle;
+	}
+}
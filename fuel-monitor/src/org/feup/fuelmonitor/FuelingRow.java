@@ -0,0 +1,40 @@
+package org.feup.fuelmonitor;
+
+import android.database.Cursor;
+
+/**
+ * FuelingRow - The values of one row of the fueling list, copied out of a
+ * FuelMonitorDbAdapter.fetchFuelingRowsPage cursor so the cursor can be
+ * closed as soon as its page is read
+ */
+public class FuelingRow {
+
+	public final long id;
+	public final String quantity; /* as stored, shown as is */
+	public final String cost; /* as stored, shown as is */
+	public final int kms;
+	public final int drivingStyle;
+	public final String fuelStation;
+	public final String date; /* yyyy-MM-dd */
+	public final boolean courseTypeCity;
+	public final boolean courseTypeRoad;
+	public final boolean courseTypeFreeway;
+	public final float avgConsumption; /* since the previous fueling */
+
+	/**
+	 * Reads the current row of a fetchFuelingRowsPage cursor
+	 */
+	public FuelingRow(Cursor cursor) {
+		id = cursor.getLong(0);
+		quantity = cursor.getString(1);
+		cost = cursor.getString(2);
+		kms = cursor.getInt(3);
+		drivingStyle = cursor.getInt(4);
+		fuelStation = cursor.getString(5);
+		date = cursor.getString(6);
+		courseTypeCity = cursor.getInt(7) == 1;
+		courseTypeRoad = cursor.getInt(8) == 1;
+		courseTypeFreeway = cursor.getInt(9) == 1;
+		avgConsumption = cursor.getFloat(10);
+	}
+}
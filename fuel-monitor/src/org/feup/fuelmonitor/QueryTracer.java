@@ -0,0 +1,260 @@
+package org.feup.fuelmonitor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * QueryTracer - Records how long every FuelMonitorDbAdapter query and write
+ * takes: the number of calls, a latency histogram, the rows returned and the
+ * calls made on the main thread, per method. Off by default; when off a call
+ * only costs the read of one volatile field, so it can stay in release builds
+ * behind the PREF_ENABLED setting.
+ *
+ * Every adapter method is wrapped as
+ *
+ * <pre>
+ * long start = QueryTracer.start();
+ * ...
+ * QueryTracer.end(&quot;methodName&quot;, start, rows);
+ * </pre>
+ *
+ * Only the outermost traced call of a thread is recorded: a traced method
+ * called by another one, e.g. getMinKms by getPreviousKms, is part of the
+ * caller's time and not counted again.
+ */
+public class QueryTracer {
+
+	private static final String TAG = "FuelMonitorQueryTracer";
+
+	/**
+	 * The default SharedPreferences key of the setting
+	 */
+	public static final String PREF_ENABLED = "trace_queries";
+
+	/**
+	 * The number of histogram buckets. Bucket i counts the calls that took
+	 * from 2^i to 2^(i+1) microseconds (bucket 0 also the faster ones, the
+	 * last bucket also the slower ones)
+	 */
+	public static final int BUCKETS = 22;
+
+	private static volatile boolean sEnabled;
+	/* The statistics of every traced method, by name */
+	private static final HashMap<String, MethodStats> sStats = new HashMap<String, MethodStats>();
+	/* The traced calls open on each thread */
+	private static final ThreadLocal<int[]> sDepth = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	/**
+	 * The statistics of one adapter method
+	 */
+	private static class MethodStats {
+		final String mName;
+		long mCalls;
+		long mMainThreadCalls;
+		long mRows;
+		long mTotalNanos;
+		long mMaxNanos;
+		final long[] mHistogram = new long[BUCKETS];
+
+		MethodStats(String name) {
+			mName = name;
+		}
+	}
+
+	/**
+	 * Turns tracing on or off as set in the default SharedPreferences, e.g.
+	 * in Application.onCreate
+	 */
+	public static void loadSetting(Context ctx) {
+		sEnabled = PreferenceManager.getDefaultSharedPreferences(ctx)
+				.getBoolean(PREF_ENABLED, false);
+	}
+
+	/**
+	 * Turns tracing on or off and saves the setting
+	 */
+	public static void setEnabled(Context ctx, boolean enabled) {
+		SharedPreferences.Editor editor = PreferenceManager
+				.getDefaultSharedPreferences(ctx).edit();
+		editor.putBoolean(PREF_ENABLED, enabled);
+		editor.commit();
+		sEnabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return sEnabled;
+	}
+
+	/**
+	 * Called at the start of a traced method
+	 *
+	 * @return the start time to pass to end(), 0 when tracing is off, -1
+	 *         when called inside another traced method
+	 */
+	static long start() {
+		if (!sEnabled)
+			return 0;
+		if (sDepth.get()[0]++ > 0)
+			return -1;
+		return System.nanoTime();
+	}
+
+	/**
+	 * Called at the end of a traced method
+	 *
+	 * @param method
+	 *            the name of the method
+	 * @param start
+	 *            the value returned by start()
+	 * @param rows
+	 *            the rows returned, or changed by a write
+	 */
+	static void end(String method, long start, int rows) {
+		if (start == 0)
+			return;
+		sDepth.get()[0]--;
+		if (start < 0)
+			return;
+		long nanos = System.nanoTime() - start;
+		boolean mainThread = Looper.myLooper() == Looper.getMainLooper();
+		int bucket = 63 - Long.numberOfLeadingZeros(nanos / 1000);
+		bucket = Math.max(0, Math.min(bucket, BUCKETS - 1));
+		synchronized (sStats) {
+			MethodStats stats = sStats.get(method);
+			if (stats == null) {
+				stats = new MethodStats(method);
+				sStats.put(method, stats);
+			}
+			stats.mCalls++;
+			stats.mRows += rows;
+			stats.mTotalNanos += nanos;
+			stats.mMaxNanos = Math.max(stats.mMaxNanos, nanos);
+			stats.mHistogram[bucket]++;
+			if (mainThread && stats.mMainThreadCalls++ == 0)
+				Log.w(TAG, method + " ran on the main thread ("
+						+ nanos / 1000 + " us)");
+		}
+	}
+
+	/**
+	 * Called at the end of a traced method that returns a cursor. A cursor
+	 * only runs its query when it's first read, so when tracing is on the
+	 * rows are counted here for the time to include the query
+	 *
+	 * @return the cursor
+	 */
+	static Cursor end(String method, long start, Cursor cursor) {
+		if (start > 0)
+			end(method, start, cursor.getCount());
+		else
+			end(method, start, 0);
+		return cursor;
+	}
+
+	/**
+	 * Forgets every recorded call
+	 */
+	public static void reset() {
+		synchronized (sStats) {
+			sStats.clear();
+		}
+	}
+
+	/**
+	 * @return a copy of the recorded statistics, slowest total time first
+	 */
+	private static List<MethodStats> snapshot() {
+		List<MethodStats> list = new ArrayList<MethodStats>();
+		synchronized (sStats) {
+			for (MethodStats stats : sStats.values()) {
+				MethodStats copy = new MethodStats(stats.mName);
+				copy.mCalls = stats.mCalls;
+				copy.mMainThreadCalls = stats.mMainThreadCalls;
+				copy.mRows = stats.mRows;
+				copy.mTotalNanos = stats.mTotalNanos;
+				copy.mMaxNanos = stats.mMaxNanos;
+				System.arraycopy(stats.mHistogram, 0, copy.mHistogram, 0,
+						BUCKETS);
+				list.add(copy);
+			}
+		}
+		Collections.sort(list, new Comparator<MethodStats>() {
+			public int compare(MethodStats a, MethodStats b) {
+				return a.mTotalNanos < b.mTotalNanos ? 1
+						: a.mTotalNanos > b.mTotalNanos ? -1 : 0;
+			}
+		});
+		return list;
+	}
+
+	/**
+	 * @return the percentile of a histogram, as the upper bound of its bucket
+	 *         in microseconds
+	 */
+	private static long percentile(MethodStats stats, double fraction) {
+		long target = (long) Math.ceil(stats.mCalls * fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += stats.mHistogram[i];
+			if (seen >= target)
+				return 2L << i;
+		}
+		return 2L << (BUCKETS - 1);
+	}
+
+	/**
+	 * @return a short summary with a line per method, for the debug screen
+	 */
+	public static String getSummary() {
+		StringBuilder summary = new StringBuilder();
+		for (MethodStats stats : snapshot())
+			summary.append(String.format(
+					"%s: %d calls, %.2f ms avg, p90 < %.2f ms, max %.2f ms,"
+							+ " %.1f rows avg%s\n", stats.mName, stats.mCalls,
+					stats.mTotalNanos / 1e6 / stats.mCalls,
+					percentile(stats, 0.9) / 1e3, stats.mMaxNanos / 1e6,
+					(double) stats.mRows / stats.mCalls,
+					stats.mMainThreadCalls > 0 ? ", " + stats.mMainThreadCalls
+							+ " on the main thread" : ""));
+		return summary.toString();
+	}
+
+	/**
+	 * Writes every recorded statistic, with the whole histograms, as tab
+	 * separated values
+	 *
+	 * @param out
+	 *            where to write them, left open
+	 */
+	public static void dump(Writer out) throws IOException {
+		out.write("method\tcalls\tmain_thread_calls\trows\ttotal_ms\tmax_ms");
+		for (int i = 0; i < BUCKETS; i++)
+			out.write("\tlt_" + (2L << i) + "us");
+		out.write('\n');
+		for (MethodStats stats : snapshot()) {
+			out.write(String.format("%s\t%d\t%d\t%d\t%.3f\t%.3f", stats.mName,
+					stats.mCalls, stats.mMainThreadCalls, stats.mRows,
+					stats.mTotalNanos / 1e6, stats.mMaxNanos / 1e6));
+			for (int i = 0; i < BUCKETS; i++)
+				out.write("\t" + stats.mHistogram[i]);
+			out.write('\n');
+		}
+	}
+}
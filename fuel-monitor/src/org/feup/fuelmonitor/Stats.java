@@ -2,28 +2,56 @@ package org.feup.fuelmonitor;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.graphview.GraphView;
 
 import android.database.Cursor;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Process;
+import android.support.v4.app.LoaderManager.LoaderCallbacks;
+import android.support.v4.content.Loader;
+import android.support.v4.widget.SimpleCursorAdapter;
+import android.view.Menu;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemSelectedListener;
 import android.widget.RelativeLayout;
-import android.widget.SimpleCursorAdapter;
 import android.widget.Spinner;
 
-import com.actionbarsherlock.app.SherlockActivity;
+import com.actionbarsherlock.app.SherlockFragmentActivity;
 
 /**
  * Stats - Creates the statistics for the consumptions.
  */
-public class Stats extends SherlockActivity {
+public class Stats extends SherlockFragmentActivity implements
+		LoaderCallbacks<Cursor> {
 	// private static final String TAG = "Stats";
+	private static final int MENU_MONTHS = Menu.FIRST;
+	private static final int MENU_FUELINGS = Menu.FIRST + 1;
+	private static final int MENU_VEHICLES = Menu.FIRST + 2;
+	private static final int MENU_COURSE_TYPES = Menu.FIRST + 3;
+	private static final int FUELINGS_SHOWN = 50; /* at first, per fueling */
+	private static final int MAX_COMPARED = 6; /* vehicles on the comparison */
+	private static final long DEBOUNCE_DELAY = 200; /* ms the selection must stay put */
+
 	// private long mVehicleID;
 	private FuelMonitorDbAdapter mDbHelper;
 	private long mVehicleId;
+	private SimpleCursorAdapter mVehicleAdapter;
+	private boolean mSelectionRestored; /* The default vehicle was selected */
+	private int mMode = MENU_MONTHS; /* The graph shown, as its menu item */
+	private GraphView mGraphView; /* Reused for every vehicle and mode */
+	private final Handler mHandler = new Handler();
+	private ExecutorService mExecutor; /* Computes the graphs, one at a time */
+	private Future<?> mPending; /* The graph being computed */
+	private AtomicBoolean mCancelled; /* Set to stop reading the fuelings of mPending */
+	private volatile int mGeneration; /* Bumped on every selection, see buildGraph */
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -31,6 +59,16 @@ public class Stats extends SherlockActivity {
 		setContentView(R.layout.stats);
 		mDbHelper = new FuelMonitorDbAdapter(this);
 		mDbHelper.open();
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				return new Thread(new Runnable() {
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, "Stats");
+			}
+		});
 
 		Spinner spinner = (Spinner) findViewById(R.id.stats_CarSpinner);
 		fillSpinner();
@@ -40,10 +78,9 @@ public class Stats extends SherlockActivity {
 			@Override
 			public void onItemSelected(AdapterView<?> parent, View view,
 					int position, long id) {
-				mVehicleId = ((SimpleCursorAdapter) parent.getAdapter())
-						.getCursor().getLong(
-								((SimpleCursorAdapter) parent.getAdapter())
-										.getCursor().getColumnIndex("_id"));
+				// the cursor may be anywhere once the loader refreshes it, the
+				// adapter gives the _id of the selected row
+				mVehicleId = id;
 				buildGraph();
 
 			}
@@ -57,19 +94,129 @@ public class Stats extends SherlockActivity {
 	}
 
 	/**
-	 * BuildGraph - Builds the statistics graph bar
+	 * A graph computed in the background, ready to be shown
+	 */
+	private static class Graph {
+		GraphView.DataSource source;
+		String title;
+		String[] horlabels;
+		boolean type = GraphView.BAR;
+		boolean zoomable;
+		boolean stacked;
+		int shown; /* the latest values shown at first, 0 for all */
+	}
+
+	/**
+	 * BuildGraph - Builds the graph of the mode chosen in the menu in the
+	 * background. The graph is only computed once the selection stays put for
+	 * a moment, and a newer selection drops the graph being computed
 	 */
 	private void buildGraph() {
+		mGeneration++;
+		cancelPending();
+		mHandler.removeCallbacks(mStartGraph);
+		mHandler.postDelayed(mStartGraph, DEBOUNCE_DELAY);
+	}
+
+	/**
+	 * Drops the graph being computed. The queries check the generation or
+	 * mCancelled as they read the rows, so the executor is free for the next
+	 * graph as soon as they see it
+	 */
+	private void cancelPending() {
+		if (mPending != null) {
+			mCancelled.set(true);
+			mPending.cancel(false);
+			mPending = null;
+		}
+	}
 
+	/**
+	 * Starts computing the graph of the latest selection
+	 */
+	private final Runnable mStartGraph = new Runnable() {
+		public void run() {
+			final int generation = mGeneration;
+			final AtomicBoolean cancelled = new AtomicBoolean();
+			final int mode = mMode;
+			final long vehicleId = mVehicleId;
+			// the cursor belongs to the main thread, the vehicles compared
+			// are read here
+			final long[] ids;
+			final String[] registrations;
+			Cursor vehicles = mVehicleAdapter.getCursor();
+			if (mode == MENU_VEHICLES && vehicles != null
+					&& vehicles.getCount() > 0) {
+				int count = Math.min(vehicles.getCount(), MAX_COMPARED);
+				int selected = Math.max(((Spinner) findViewById(R.id.stats_CarSpinner))
+						.getSelectedItemPosition(), 0);
+				ids = new long[count];
+				registrations = new String[count];
+				for (int i = 0; i < count; i++) {
+					vehicles.moveToPosition((selected + i) % vehicles.getCount());
+					ids[i] = vehicles.getLong(vehicles.getColumnIndex("_id"));
+					registrations[i] = vehicles.getString(vehicles
+							.getColumnIndex("registration"));
+				}
+			} else {
+				ids = null;
+				registrations = null;
+			}
+
+			mCancelled = cancelled;
+			mPending = mExecutor.submit(new Runnable() {
+				public void run() {
+					final Graph graph;
+					switch (mode) {
+					case MENU_FUELINGS:
+						graph = computeFuelingGraph(cancelled, vehicleId);
+						break;
+					case MENU_VEHICLES:
+						graph = ids == null ? null : computeVehiclesGraph(
+								generation, ids, registrations);
+						break;
+					case MENU_COURSE_TYPES:
+						graph = computeCourseTypesGraph(generation, vehicleId);
+						break;
+					default:
+						graph = computeMonthsGraph(cancelled, vehicleId);
+					}
+					if (graph == null || generation != mGeneration)
+						return;
+					mHandler.post(new Runnable() {
+						public void run() {
+							// the selection may have changed while posting
+							if (generation == mGeneration)
+								showGraph(graph);
+						}
+					});
+				}
+			});
+		}
+	};
+
+	/**
+	 * Shows a graph computed by buildGraph
+	 */
+	private void showGraph(Graph graph) {
+		mPending = null;
+		GraphView graphView = getGraphView();
+		graphView.setData(graph.source, graph.title, graph.horlabels,
+				graph.type);
+		graphView.setZoomable(graph.zoomable);
+		graphView.setStacked(graph.stacked);
+		if (graph.shown > 0)
+			graphView.setViewport(graph.source.size() - graph.shown,
+					graph.shown);
+	}
+
+	/**
+	 * @return the labels of the first months of the year
+	 */
+	private static String[] getMonthLabels(int month) {
 		String[] months = new String[] { "Jan.", "Fev.", "Mar.", "Abr.",
 				"Mai.", "Jun.", "Jul.", "Ago.", "Set.", "Out.", "Nov.", "Dez." };
 
-		// Calendar class for fetching the year and the year months until this
-		// date
-		Calendar c = Calendar.getInstance();
-		int year = c.get(Calendar.YEAR);
-		int month = c.get(Calendar.MONTH) + 1;
-
 		// Add the months
 		ArrayList<String> listMonths = new ArrayList<String>();
 		for (int i = 0; i < month; i++) {
@@ -77,21 +224,175 @@ public class Stats extends SherlockActivity {
 		}
 		String[] actualMonths = new String[month];
 		listMonths.toArray(actualMonths);
+		return actualMonths;
+	}
+
+	/**
+	 * Computes the statistics graph bar of the months of the year
+	 *
+	 * @return the graph, or null if a newer selection was made meanwhile
+	 */
+	private Graph computeMonthsGraph(AtomicBoolean cancelled, long vehicleId) {
+		// Calendar class for fetching the year and the year months until this
+		// date
+		Calendar c = Calendar.getInstance();
+		int year = c.get(Calendar.YEAR);
+		int month = c.get(Calendar.MONTH) + 1;
 
+		// The database sums the fuelings of each month of the year, so only
+		// a row per month is read. Months without fuelings stay at 0
 		float[] values = new float[month];
-		// Get the consumptions
+		Cursor consumptions = mDbHelper.fetchConsumptionByPeriod(vehicleId,
+				FuelMonitorDbAdapter.toEpochDay(year, 1, 1),
+				FuelMonitorDbAdapter.toEpochDay(year + 1, 1, 1),
+				FuelMonitorDbAdapter.BUCKET_MONTH);
+		try {
+			int periodColumn = consumptions.getColumnIndex("period");
+			int consumptionColumn = consumptions.getColumnIndex("consumption");
+			while (consumptions.moveToNext()) {
+				if (cancelled.get())
+					return null;
+				// period is formatted as yyyy-MM
+				int i = Integer.parseInt(consumptions.getString(periodColumn)
+						.substring(5)) - 1;
+				if (i < month)
+					values[i] = consumptions.getFloat(consumptionColumn);
+			}
+		} finally {
+			consumptions.close();
+		}
 
-		for (int i = 0; i < month; i++) {
-			values[i] = mDbHelper.getAverageFuelConsumptionByDate(mVehicleId,
-					i + 1, year);
+		Graph graph = new Graph();
+		graph.source = new GraphView.ArraySource(new float[][] { values },
+				null);
+		graph.title = "Consumos de " + year;
+		graph.horlabels = getMonthLabels(month);
+		return graph;
+	}
+
+	/**
+	 * Computes the bars of the consumption of the months of the year of some
+	 * vehicles, side by side. Every vehicle is read in the same query
+	 *
+	 * @return the graph, or null if a newer selection was made meanwhile
+	 */
+	private Graph computeVehiclesGraph(int generation, long[] ids,
+			String[] registrations) {
+		Calendar c = Calendar.getInstance();
+		int year = c.get(Calendar.YEAR);
+		int month = c.get(Calendar.MONTH) + 1;
+		int count = ids.length;
+		float[][] values = new float[count][month];
+		Cursor consumptions = mDbHelper.fetchConsumptionByVehiclesAndPeriod(
+				ids, FuelMonitorDbAdapter.toEpochDay(year, 1, 1),
+				FuelMonitorDbAdapter.toEpochDay(year + 1, 1, 1),
+				FuelMonitorDbAdapter.BUCKET_MONTH);
+		try {
+			int vehicleColumn = consumptions.getColumnIndex("idVehicle");
+			int periodColumn = consumptions.getColumnIndex("period");
+			int consumptionColumn = consumptions.getColumnIndex("consumption");
+			int vehicle = 0;
+			while (consumptions.moveToNext()) {
+				if (generation != mGeneration)
+					return null;
+				// the rows come ordered by vehicle, not in the order of ids
+				long id = consumptions.getLong(vehicleColumn);
+				while (ids[vehicle] != id)
+					vehicle = (vehicle + 1) % count;
+				// period is formatted as yyyy-MM
+				int i = Integer.parseInt(consumptions.getString(periodColumn)
+						.substring(5)) - 1;
+				if (i < month)
+					values[vehicle][i] = consumptions.getFloat(consumptionColumn);
+			}
+		} finally {
+			consumptions.close();
 		}
 
-		// Add the graphview as a view in the RelativeLayout inside the activity
-		RelativeLayout layoutGraph = (RelativeLayout) findViewById(R.id.stats_GraphLayout);
-		GraphView graphView = new GraphView(this, values,
-				"Consumos de " + year, actualMonths, null, GraphView.BAR);
-		layoutGraph.removeAllViews();
-		layoutGraph.addView(graphView);
+		Graph graph = new Graph();
+		graph.source = new GraphView.ArraySource(values, registrations);
+		graph.title = "Consumos de " + year;
+		graph.horlabels = getMonthLabels(month);
+		return graph;
+	}
+
+	/**
+	 * Computes the stacked bars of the kms a vehicle drove in the city, on the
+	 * road and on the freeway in the months of the year
+	 *
+	 * @return the graph, or null if a newer selection was made meanwhile
+	 */
+	private Graph computeCourseTypesGraph(int generation, long vehicleId) {
+		Calendar c = Calendar.getInstance();
+		int year = c.get(Calendar.YEAR);
+		int month = c.get(Calendar.MONTH) + 1;
+		float[][] values = new float[3][month];
+		Cursor kms = mDbHelper.fetchCourseTypesByPeriod(vehicleId,
+				FuelMonitorDbAdapter.toEpochDay(year, 1, 1),
+				FuelMonitorDbAdapter.toEpochDay(year + 1, 1, 1),
+				FuelMonitorDbAdapter.BUCKET_MONTH);
+		try {
+			int periodColumn = kms.getColumnIndex("period");
+			int cityColumn = kms.getColumnIndex("city");
+			while (kms.moveToNext()) {
+				if (generation != mGeneration)
+					return null;
+				int i = Integer.parseInt(kms.getString(periodColumn).substring(5)) - 1;
+				if (i < month)
+					// city, road and freeway come one after the other
+					for (int type = 0; type < 3; type++)
+						values[type][i] = kms.getFloat(cityColumn + type);
+			}
+		} finally {
+			kms.close();
+		}
+
+		Graph graph = new Graph();
+		graph.source = new GraphView.ArraySource(values, new String[] {
+				getString(R.string.add_fueling_courseTypeCity),
+				getString(R.string.add_fueling_courseTypeRoad),
+				getString(R.string.add_fueling_courseTypeFreeway) });
+		graph.title = getString(R.string.stats_course_types_title, year);
+		graph.horlabels = getMonthLabels(month);
+		graph.stacked = true;
+		return graph;
+	}
+
+	/**
+	 * Computes the line of the consumption of every fueling, zoomed to the
+	 * latest ones. The graph reads the consumptions of the fuelings it shows
+	 * as it's panned and zoomed, the ones shown at first are read here
+	 *
+	 * @return the graph, or null if a newer selection was made meanwhile
+	 */
+	private Graph computeFuelingGraph(AtomicBoolean cancelled, long vehicleId) {
+		FuelingConsumptionSource source = new FuelingConsumptionSource(
+				mDbHelper, vehicleId, mExecutor);
+		// the graph reads as many values again on each side of the viewport
+		if (!source.preload(source.size() - 2 * FUELINGS_SHOWN, source.size(),
+				cancelled))
+			return null;
+		Graph graph = new Graph();
+		graph.source = source;
+		graph.title = getString(R.string.stats_by_fueling);
+		graph.type = GraphView.LINE;
+		graph.zoomable = true;
+		graph.shown = FUELINGS_SHOWN;
+		return graph;
+	}
+
+	/**
+	 * Returns the graph, adding it to the activity the first time. Later
+	 * graphs replace its data, animating from the graph shown
+	 */
+	private GraphView getGraphView() {
+		if (mGraphView == null) {
+			mGraphView = new GraphView(this, (float[]) null, null, null, null,
+					GraphView.BAR);
+			RelativeLayout layoutGraph = (RelativeLayout) findViewById(R.id.stats_GraphLayout);
+			layoutGraph.addView(mGraphView);
+		}
+		return mGraphView;
 	}
 
 	/**
@@ -99,39 +400,100 @@ public class Stats extends SherlockActivity {
 	 */
 	private void fillSpinner() {
 
-		Cursor vehicleCursor = mDbHelper.fetchVehicles();
-		// TODO Use a CursorLoader (startManagingCursor is deprecated)
-		startManagingCursor(vehicleCursor);
-
-		SimpleCursorAdapter vehicleAdapter = new SimpleCursorAdapter(this,
-				android.R.layout.simple_spinner_item, vehicleCursor,
+		mVehicleAdapter = new SimpleCursorAdapter(this,
+				android.R.layout.simple_spinner_item, null,
 				new String[] { "registration" },
-				new int[] { android.R.id.text1 });
+				new int[] { android.R.id.text1 }, 0);
 
 		Spinner spinner = (Spinner) findViewById(R.id.stats_CarSpinner);
-		spinner.setAdapter(vehicleAdapter);
+		spinner.setAdapter(mVehicleAdapter);
+
+		getSupportLoaderManager().initLoader(0, null, this);
+	}
+
+	/**
+	 * Creates the loader of the vehicles
+	 */
+	public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+		return new FuelMonitorCursorLoader(this,
+				FuelMonitorCursorLoader.VEHICLES, 0);
+	}
+
+	/**
+	 * Shows the vehicles once they are loaded
+	 */
+	public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+		mVehicleAdapter.swapCursor(cursor);
+		if (mSelectionRestored)
+			return;
+		mSelectionRestored = true;
 
 		// This is needed in case one vehicle (in the middle) had been
 		// deleted (Default - Select previous vehicle)
-		SimpleCursorAdapter adapter = (SimpleCursorAdapter) spinner
-				.getAdapter();
-		Cursor cursor = adapter.getCursor();
-		int findInt = mDbHelper.getLastFuelingVehicleID();
-		for (int i = 0; i < adapter.getCount(); i++) {
-			cursor.moveToPosition(i);
-			if ((cursor.getLong(cursor.getColumnIndex("_id"))) == findInt) {
+		Spinner spinner = (Spinner) findViewById(R.id.stats_CarSpinner);
+		long findId = FuelMonitorDbAdapter.getLastFueledVehicleID(cursor);
+		for (int i = 0; i < mVehicleAdapter.getCount(); i++) {
+			if (mVehicleAdapter.getItemId(i) == findId) {
 				spinner.setSelection(i);
 				break;
 			}
 		}
 	}
 
+	/**
+	 * Releases the vehicles cursor
+	 */
+	public void onLoaderReset(Loader<Cursor> loader) {
+		mVehicleAdapter.swapCursor(null);
+	}
+
+	/**
+	 * Adds the graphs that can be shown
+	 */
+	@Override
+	public boolean onCreateOptionsMenu(com.actionbarsherlock.view.Menu menu) {
+		menu.add(0, MENU_MONTHS, 0, R.string.stats_by_month);
+		menu.add(0, MENU_FUELINGS, 0, R.string.stats_by_fueling);
+		menu.add(0, MENU_VEHICLES, 0, R.string.stats_by_vehicle);
+		menu.add(0, MENU_COURSE_TYPES, 0, R.string.stats_by_course_type);
+		return super.onCreateOptionsMenu(menu);
+	}
+
+	/**
+	 * Shows the graph chosen
+	 */
+	@Override
+	public boolean onOptionsItemSelected(
+			com.actionbarsherlock.view.MenuItem item) {
+		switch (item.getItemId()) {
+		case MENU_MONTHS:
+		case MENU_FUELINGS:
+		case MENU_VEHICLES:
+		case MENU_COURSE_TYPES:
+			mMode = item.getItemId();
+			buildGraph();
+			return true;
+		}
+		return super.onOptionsItemSelected(item);
+	}
+
 	/**
 	 * On destroy of the activity method
 	 */
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
-		mDbHelper.close();
+		// drop the graph being computed or posted
+		mHandler.removeCallbacks(mStartGraph);
+		mGeneration++;
+		cancelPending();
+		// the adapter is closed once the graph being computed is done with it
+		final FuelMonitorDbAdapter dbHelper = mDbHelper;
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				dbHelper.close();
+			}
+		});
+		mExecutor.shutdown();
 	}
 }
@@ -0,0 +1,218 @@
+package org.feup.fuelmonitor;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.feup.fuelmonitor.analytics.ConsumptionAnalytics;
+import org.feup.fuelmonitor.analytics.FuelingSeries;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * StatsCache - Keeps the fuelings of the vehicles seen lately in memory, as
+ * FuelingSeries with their running totals, so the statistics of a vehicle are
+ * only read from the database again after it changes. FuelMonitorDbAdapter
+ * tells the cache about every write: a fueling added after the last one is
+ * appended to the cached series, any other change bumps the version of the
+ * vehicle and its series is read again the next time it's needed.
+ */
+public class StatsCache {
+
+	private static final int MAX_FUELINGS = 100000; /* about 1.7MB of arrays */
+	private static StatsCache sInstance;
+
+	/**
+	 * The fuelings of a vehicle, as they were at a version
+	 */
+	private static class Entry {
+		final FuelingSeries series; /* owned by the cache, readers get snapshots */
+		final long version;
+		final double litres;
+		final double cost;
+		final int size; /* the size counted by the LruCache */
+
+		Entry(FuelingSeries series, long version, double litres, double cost) {
+			this.series = series;
+			this.version = version;
+			this.litres = litres;
+			this.cost = cost;
+			size = series.size() + 1;
+		}
+	}
+
+	private final LruCache<Long, Entry> mCache; /* vehicle -> fuelings */
+	private final HashMap<Long, Long> mVersions; /* vehicle -> writes so far */
+	private long mEpoch; /* bumped when every vehicle changes */
+
+	/**
+	 * Returns the cache shared by the whole application
+	 */
+	public static synchronized StatsCache getInstance() {
+		if (sInstance == null)
+			sInstance = new StatsCache();
+		return sInstance;
+	}
+
+	private StatsCache() {
+		mCache = new LruCache<Long, Entry>(MAX_FUELINGS) {
+			@Override
+			protected int sizeOf(Long key, Entry value) {
+				return value.size;
+			}
+		};
+		mVersions = new HashMap<Long, Long>();
+	}
+
+	/**
+	 * Returns the fuelings of a vehicle, reading them from the database only
+	 * if they aren't cached or the vehicle changed since. Reading them takes a
+	 * while, so it should not be called on the main thread
+	 *
+	 * @param db
+	 *            an open adapter, used on a cache miss
+	 * @param vehicleId
+	 *            the id of the vehicle
+	 * @return a read only snapshot of the fuelings, in kms order
+	 */
+	public FuelingSeries getSeries(FuelMonitorDbAdapter db, long vehicleId) {
+		return get(db, vehicleId, null).series;
+	}
+
+	/**
+	 * Returns the fuelings of a vehicle, as getSeries(db, vehicleId), unless
+	 * reading them is cancelled meanwhile
+	 *
+	 * @param cancelled
+	 *            checked while the fuelings are read, see
+	 *            FuelMonitorDbAdapter.loadFuelingSeries
+	 * @return a read only snapshot of the fuelings, or null if reading them
+	 *         was cancelled
+	 */
+	public FuelingSeries getSeries(FuelMonitorDbAdapter db, long vehicleId,
+			AtomicBoolean cancelled) {
+		Entry entry = get(db, vehicleId, cancelled);
+		return entry == null ? null : entry.series;
+	}
+
+	/**
+	 * Returns the totals of a vehicle, as ConsumptionAnalytics.totals but
+	 * kept as running sums, so they're not added up again after a fueling is
+	 * appended
+	 *
+	 * @param db
+	 *            an open adapter, used on a cache miss
+	 * @param vehicleId
+	 *            the id of the vehicle
+	 */
+	public ConsumptionAnalytics.Totals getTotals(FuelMonitorDbAdapter db,
+			long vehicleId) {
+		Entry entry = get(db, vehicleId, null);
+		FuelingSeries series = entry.series;
+		int size = series.size();
+		int distance = size == 0 ? 0 : series.getKms(size - 1)
+				- series.getInitialKms();
+		return new ConsumptionAnalytics.Totals(size, distance, entry.litres,
+				entry.cost);
+	}
+
+	/**
+	 * @return an entry with a snapshot of the current fuelings of the vehicle,
+	 *         or null if reading them was cancelled
+	 */
+	private Entry get(FuelMonitorDbAdapter db, long vehicleId,
+			AtomicBoolean cancelled) {
+		Long key = vehicleId;
+		long version;
+		synchronized (this) {
+			version = getVersion(key);
+			Entry entry = mCache.get(key);
+			if (entry != null && entry.version == version)
+				return snapshot(entry);
+		}
+
+		// read without holding the lock, a write meanwhile bumps the version
+		// and the series read is not cached
+		FuelingSeries series = db.loadFuelingSeries(vehicleId, cancelled);
+		if (series == null)
+			return null;
+		ConsumptionAnalytics.Totals totals = ConsumptionAnalytics
+				.totals(series);
+		Entry entry = new Entry(series, version, totals.litres, totals.cost);
+		synchronized (this) {
+			if (getVersion(key) == version)
+				mCache.put(key, entry);
+			return snapshot(entry);
+		}
+	}
+
+	private static Entry snapshot(Entry entry) {
+		return new Entry(entry.series.snapshot(), entry.version, entry.litres,
+				entry.cost);
+	}
+
+	private long getVersion(Long vehicleId) {
+		Long version = mVersions.get(vehicleId);
+		return mEpoch + (version == null ? 0 : version);
+	}
+
+	/**
+	 * Bumps the version of a vehicle
+	 *
+	 * @return the new version
+	 */
+	private long bump(Long vehicleId) {
+		Long version = mVersions.get(vehicleId);
+		mVersions.put(vehicleId, version == null ? 1 : version + 1);
+		return getVersion(vehicleId);
+	}
+
+	/**
+	 * Called by FuelMonitorDbAdapter after a fueling is inserted. If the
+	 * vehicle is cached and the fueling comes after its last one, the fueling
+	 * is appended to the cached series
+	 */
+	synchronized void fuelingAdded(long vehicleId, int kms, float litres,
+			float cost, int day, int drivingStyle) {
+		Long key = vehicleId;
+		Entry entry = mCache.get(key);
+		boolean current = entry != null && entry.version == getVersion(key);
+		long version = bump(key);
+		if (!current)
+			return;
+		FuelingSeries series = entry.series;
+		int size = series.size();
+		if (size > 0 && kms < series.getKms(size - 1)) {
+			// the fueling goes in the middle, the distances after it change
+			mCache.remove(key);
+			return;
+		}
+		series.add(kms, litres, cost, day, drivingStyle);
+		mCache.put(key, new Entry(series, version, entry.litres + litres,
+				entry.cost + cost));
+	}
+
+	/**
+	 * Called by FuelMonitorDbAdapter after the fuelings or the kms of a vehicle
+	 * change in any other way
+	 */
+	synchronized void invalidate(long vehicleId) {
+		bump(vehicleId);
+		mCache.remove(vehicleId);
+	}
+
+	/**
+	 * Called by FuelMonitorDbAdapter after the fuelings of many vehicles
+	 * change, e.g. on an import
+	 */
+	synchronized void invalidateAll() {
+		mEpoch++;
+		mCache.evictAll();
+	}
+
+	/**
+	 * Drops every cached series, they'll be read again when needed
+	 */
+	public synchronized void trim() {
+		mCache.evictAll();
+	}
+}
@@ -0,0 +1,116 @@
+package org.feup.fuelmonitor;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * StorageProfile - How the database connection trades durability for speed:
+ * the journal mode, the synchronous level, the page cache size and the size
+ * of the memory mapped I/O. Applied every time a connection is opened (see
+ * FuelMonitorDbAdapter.setStorageProfile).
+ * The journal mode belongs to the database file, the pragmas only to the
+ * connection they run on: on Android 4.1 and up the write-ahead log is turned
+ * on while the helper configures the connection, before it's used, and the
+ * pragmas reach only the primary connection, which does every write. The
+ * pooled connections that only read keep the SQLite defaults.
+ */
+public class StorageProfile {
+
+	private static final String TAG = "FuelMonitorStorageProfile";
+
+	/**
+	 * Values of PRAGMA synchronous
+	 */
+	public static final int SYNCHRONOUS_OFF = 0;
+	public static final int SYNCHRONOUS_NORMAL = 1;
+	public static final int SYNCHRONOUS_FULL = 2;
+
+	/**
+	 * The SQLite defaults: rollback journal, a writer blocks every reader
+	 */
+	public static final StorageProfile ROLLBACK = new StorageProfile(
+			"rollback", false, SYNCHRONOUS_FULL, 0, 0);
+
+	/**
+	 * Write-ahead log, readers go on while a writer is active. Synchronous
+	 * NORMAL is still safe against corruption in WAL mode, a power loss can
+	 * only lose the last transactions
+	 */
+	public static final StorageProfile WAL = new StorageProfile("wal", true,
+			SYNCHRONOUS_NORMAL, 1000, 0);
+
+	/**
+	 * WAL with no syncs and memory mapped reads, for comparison in the
+	 * benchmarks only (a crash may lose the recent writes)
+	 */
+	public static final StorageProfile WAL_UNSAFE = new StorageProfile(
+			"wal-unsafe", true, SYNCHRONOUS_OFF, 4000, 8 * 1024 * 1024);
+
+	private final String mName;
+	private final boolean mWriteAheadLogging;
+	private final int mSynchronous;
+	private final int mCacheSize;
+	private final long mMmapSize;
+
+	/**
+	 * @param name
+	 *            the name shown in logs and benchmark reports
+	 * @param writeAheadLogging
+	 *            true to use the write-ahead log (only on Android 3.0 and up,
+	 *            older versions keep the rollback journal)
+	 * @param synchronous
+	 *            one of the SYNCHRONOUS_ constants
+	 * @param cacheSize
+	 *            the page cache size, in pages, 0 for the SQLite default
+	 * @param mmapSize
+	 *            the memory mapped I/O size, in bytes, 0 to disable it
+	 *            (ignored by SQLite versions that don't support it)
+	 */
+	public StorageProfile(String name, boolean writeAheadLogging,
+			int synchronous, int cacheSize, long mmapSize) {
+		mName = name;
+		mWriteAheadLogging = writeAheadLogging;
+		mSynchronous = synchronous;
+		mCacheSize = cacheSize;
+		mMmapSize = mmapSize;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * Configures a connection on Android 4.1 and up, from
+	 * SQLiteOpenHelper.onConfigure, before the connection pool is used
+	 */
+	void configure(SQLiteDatabase db) {
+		if (mWriteAheadLogging && !db.isReadOnly())
+			db.enableWriteAheadLogging();
+	}
+
+	/**
+	 * Applies the profile to a newly opened connection, outside any
+	 * transaction. Android 3.0 to 4.0 have no onConfigure, the write-ahead
+	 * log is turned on here
+	 */
+	void apply(SQLiteDatabase db) {
+		if (db.isReadOnly())
+			return;
+		if (mWriteAheadLogging
+				&& Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+				&& Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN)
+			db.enableWriteAheadLogging();
+		db.execSQL("PRAGMA synchronous=" + mSynchronous + ";");
+		if (mCacheSize > 0)
+			db.execSQL("PRAGMA cache_size=" + mCacheSize + ";");
+		if (mMmapSize > 0) {
+			// returns the new size, so it can't go through execSQL
+			Cursor result = db.rawQuery("PRAGMA mmap_size=" + mMmapSize, null);
+			result.moveToFirst();
+			result.close();
+		}
+		Log.i(TAG, "Using storage profile " + mName);
+	}
+}
@@ -0,0 +1,130 @@
+package org.feup.fuelmonitor;
+
+import java.util.Iterator;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * StorageProfileBenchmark - Compares the insert and read throughput of the
+ * storage profiles on a generated fleet, in a database file of its own.
+ * Takes a while, must not be run on the main thread.
+ */
+class StorageProfileBenchmark {
+
+	private static final String TAG = "FuelMonitorStorageProfileBenchmark";
+	private static final String DATABASE_NAME = "benchmark";
+	private static final int BATCH_SIZE = 500;
+
+	/**
+	 * Runs the benchmark for every profile
+	 *
+	 * @param ctx
+	 *            the Context within which to work
+	 * @param vehicles
+	 *            the number of vehicles of the fleet
+	 * @param fuelingsPerVehicle
+	 *            the number of fuelings of each vehicle
+	 * @return a report with a line per profile
+	 */
+	static String run(Context ctx, int vehicles, int fuelingsPerVehicle) {
+		StorageProfile[] profiles = new StorageProfile[] {
+				StorageProfile.ROLLBACK, StorageProfile.WAL,
+				StorageProfile.WAL_UNSAFE };
+		StringBuilder report = new StringBuilder();
+		for (StorageProfile profile : profiles)
+			report.append(run(ctx, profile, vehicles, fuelingsPerVehicle));
+		return report.toString();
+	}
+
+	private static String run(Context ctx, StorageProfile profile,
+			int vehicles, int fuelingsPerVehicle) {
+		ctx.deleteDatabase(DATABASE_NAME);
+		final FuelMonitorDbAdapter db = FuelMonitorDbAdapter.openPrivate(ctx,
+				DATABASE_NAME, profile);
+		try {
+			// the same fleet for every profile
+			final FleetDataGenerator generator = new FleetDataGenerator(1);
+			final long[] vehicleIds = generator.createVehicles(db, vehicles);
+
+			// Inserts: the whole history, through the bulk import
+			long start = System.nanoTime();
+			int inserted = db.importFuelings(
+					generator.fuelings(fuelingsPerVehicle), BATCH_SIZE, null);
+			double insertsPerSecond = inserted * 1e9
+					/ (System.nanoTime() - start);
+
+			// Reads: every fueling list, with nothing else going on
+			start = System.nanoTime();
+			int rows = readFuelingLists(db, vehicleIds);
+			double rowsPerSecond = rows * 1e9 / (System.nanoTime() - start);
+
+			// Reads while a writer is active: another tenth of the history is
+			// imported while this thread keeps reading the vehicle totals
+			final Iterator<FuelingRecord> extraFuelings = generator
+					.fuelings(Math.max(fuelingsPerVehicle / 10, 1));
+			Thread writer = new Thread(new Runnable() {
+				public void run() {
+					db.importFuelings(extraFuelings, BATCH_SIZE, null);
+				}
+			});
+			int reads = 0;
+			long maxReadNanos = 0;
+			start = System.nanoTime();
+			writer.start();
+			while (writer.isAlive()) {
+				long readStart = System.nanoTime();
+				Cursor stats = db.fetchVehicleStats(vehicleIds[reads
+						% vehicleIds.length]);
+				stats.moveToFirst();
+				stats.close();
+				maxReadNanos = Math.max(maxReadNanos, System.nanoTime()
+						- readStart);
+				reads++;
+			}
+			double concurrentReadsPerSecond = reads * 1e9
+					/ (System.nanoTime() - start);
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			String line = String
+					.format("%s: %.0f inserts/s, %.0f rows read/s, %.0f reads/s during writes (slowest %.1f ms)\n",
+							profile.getName(), insertsPerSecond,
+							rowsPerSecond, concurrentReadsPerSecond,
+							maxReadNanos / 1e6);
+			Log.i(TAG, line.trim());
+			return line;
+		} finally {
+			db.close();
+			ctx.deleteDatabase(DATABASE_NAME);
+		}
+	}
+
+	private static int readFuelingLists(FuelMonitorDbAdapter db,
+			long[] vehicleIds) {
+		int rows = 0;
+		// a page at a time, as the fueling list reads them
+		for (long vehicleId : vehicleIds) {
+			int afterKms = Integer.MIN_VALUE;
+			long afterId = 0;
+			int read = FuelingPageLoader.PAGE_SIZE;
+			while (read == FuelingPageLoader.PAGE_SIZE) {
+				Cursor fuelings = db.fetchFuelingRowsPage(vehicleId, afterKms,
+						afterId, FuelingPageLoader.PAGE_SIZE);
+				read = 0;
+				while (fuelings.moveToNext()) {
+					afterKms = fuelings.getInt(3);
+					afterId = fuelings.getLong(0);
+					read++;
+				}
+				fuelings.close();
+				rows += read;
+			}
+		}
+		return rows;
+	}
+}
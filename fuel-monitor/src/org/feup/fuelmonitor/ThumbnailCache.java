@@ -0,0 +1,185 @@
+package org.feup.fuelmonitor;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.widget.ImageView;
+
+/**
+ * ThumbnailCache - Keeps the decoded vehicle thumbnails in memory and decodes
+ * the missing ones on a worker pool, so binding a list row never touches the
+ * disk on the main thread.
+ */
+public class ThumbnailCache {
+
+	private static final int WORKER_THREADS = 2;
+	private static ThumbnailCache sInstance;
+
+	private final LruCache<String, Bitmap> mCache; /* registration -> thumbnail */
+	private final Set<String> mMissing; /* registrations without a thumbnail */
+	private final Map<ImageView, Future<?>> mPending; /* used on the main thread only */
+	/* registration -> times invalidated, guarded by itself */
+	private final Map<String, Integer> mVersions;
+	private final ExecutorService mExecutor;
+	private final Handler mHandler;
+
+	/**
+	 * Returns the cache shared by the whole application
+	 *
+	 * @param ctx
+	 *            any context of the application
+	 */
+	public static synchronized ThumbnailCache getInstance(Context ctx) {
+		if (sInstance == null)
+			sInstance = new ThumbnailCache(ctx.getApplicationContext());
+		return sInstance;
+	}
+
+	private ThumbnailCache(Context ctx) {
+		// an eighth of the memory the system gives to the application
+		int memoryClass = ((ActivityManager) ctx
+				.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
+		mCache = new LruCache<String, Bitmap>(memoryClass * 1024 * 1024 / 8) {
+			@Override
+			protected int sizeOf(String key, Bitmap value) {
+				return value.getRowBytes() * value.getHeight();
+			}
+		};
+		mMissing = Collections.synchronizedSet(new HashSet<String>());
+		mPending = new HashMap<ImageView, Future<?>>();
+		mVersions = new HashMap<String, Integer>();
+		mExecutor = Executors.newFixedThreadPool(WORKER_THREADS,
+				new ThreadFactory() {
+					public Thread newThread(final Runnable r) {
+						return new Thread(new Runnable() {
+							public void run() {
+								Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+								r.run();
+							}
+						}, "ThumbnailCache");
+					}
+				});
+		mHandler = new Handler(Looper.getMainLooper());
+	}
+
+	/**
+	 * Shows the thumbnail of a vehicle in an image view. A cached thumbnail is
+	 * shown at once, otherwise the placeholder is shown until the thumbnail is
+	 * decoded. Must be called on the main thread.
+	 *
+	 * @param registration
+	 *            the registration of the vehicle
+	 * @param view
+	 *            the view that will show the thumbnail, it may be reused for
+	 *            another vehicle before the decoding ends
+	 */
+	public void loadThumbnail(final String registration, final ImageView view) {
+		// the row was recycled, the thumbnail it was waiting for is not needed
+		Future<?> pending = mPending.remove(view);
+		if (pending != null)
+			pending.cancel(false);
+		view.setTag(registration);
+
+		Bitmap bitmap = mCache.get(registration);
+		if (bitmap != null) {
+			view.setImageBitmap(bitmap);
+			return;
+		}
+		view.setImageResource(R.drawable.photo_not_available);
+		if (mMissing.contains(registration))
+			return;
+
+		final int version = getVersion(registration);
+		mPending.put(view, mExecutor.submit(new Runnable() {
+			public void run() {
+				final Bitmap thumbnail = decodeThumbnail(registration);
+				// a thumbnail decoded before the photo changed isn't kept
+				synchronized (mVersions) {
+					if (version != getVersion(registration))
+						return;
+					if (thumbnail == null) {
+						mMissing.add(registration);
+					} else
+						mCache.put(registration, thumbnail);
+				}
+				mHandler.post(new Runnable() {
+					public void run() {
+						// only if the view still shows the same vehicle
+						if (registration.equals(view.getTag())) {
+							mPending.remove(view);
+							if (thumbnail != null)
+								view.setImageBitmap(thumbnail);
+						}
+					}
+				});
+			}
+		}));
+	}
+
+	/**
+	 * Forgets the thumbnail of a vehicle, to be called when its photo is taken,
+	 * renamed or deleted. The decodings pending for it are cancelled, and the
+	 * ones already running are not kept. Must be called on the main thread.
+	 *
+	 * @param registration
+	 *            the registration of the vehicle
+	 */
+	public void invalidate(String registration) {
+		synchronized (mVersions) {
+			mVersions.put(registration, getVersion(registration) + 1);
+			mCache.remove(registration);
+			mMissing.remove(registration);
+		}
+		Iterator<Map.Entry<ImageView, Future<?>>> pending = mPending
+				.entrySet().iterator();
+		while (pending.hasNext()) {
+			Map.Entry<ImageView, Future<?>> entry = pending.next();
+			ImageView view = entry.getKey();
+			if (registration.equals(view.getTag())) {
+				entry.getValue().cancel(false);
+				pending.remove();
+				// shown again when the list rebinds the row
+				view.setTag(null);
+			}
+		}
+	}
+
+	/**
+	 * @return the times the thumbnail of a vehicle was invalidated
+	 */
+	private int getVersion(String registration) {
+		synchronized (mVersions) {
+			Integer version = mVersions.get(registration);
+			return version == null ? 0 : version;
+		}
+	}
+
+	/**
+	 * Decodes the thumbnail file of a vehicle, on a worker thread
+	 *
+	 * @return the thumbnail or null if the vehicle doesn't have one
+	 */
+	private static Bitmap decodeThumbnail(String registration) {
+		File file = VehiclePhotos.getThumbnailFile(registration);
+		if (!file.exists() || file.length() == 0)
+			return null;
+		return BitmapFactory.decodeFile(file.getAbsolutePath());
+	}
+}
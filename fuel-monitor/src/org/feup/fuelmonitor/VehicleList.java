@@ -1,13 +1,14 @@
 package org.feup.fuelmonitor;
 
-import java.io.File;
 import java.util.Calendar;
 
 import android.content.Intent;
 import android.database.Cursor;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
-import android.os.Environment;
+import android.support.v4.app.LoaderManager.LoaderCallbacks;
+import android.support.v4.content.Loader;
+import android.support.v4.widget.SimpleCursorAdapter;
+import android.support.v4.widget.SimpleCursorAdapter.ViewBinder;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.Menu;
@@ -18,20 +19,25 @@ import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.Button;
 import android.widget.ImageView;
-import android.widget.SimpleCursorAdapter;
-import android.widget.SimpleCursorAdapter.ViewBinder;
+import android.widget.ListView;
 import android.widget.TextView;
 
-import com.actionbarsherlock.app.SherlockListActivity;
+import com.actionbarsherlock.app.SherlockFragmentActivity;
 
 /**
  * VehicleList - A class for listing in a activity the vehicles
  */
-public class VehicleList extends SherlockListActivity {
+public class VehicleList extends SherlockFragmentActivity implements
+		LoaderCallbacks<Cursor> {
+	private static final int MENU_EXPORT_CSV = Menu.FIRST;
+	private static final int MENU_EXPORT_TSV = Menu.FIRST + 1;
 	private FuelMonitorDbAdapter mDbHelper; /*
 											 * The class for managing the data
 											 * base
 											 */
+	private ListView mListView; /* The list of vehicles */
+	private SimpleCursorAdapter mVehicleAdapter; /* The adapter of the list */
+	private ThumbnailCache mThumbnails; /* The decoded vehicle pictures */
 
 	/**
 	 * Function that is called when the activity is created
@@ -45,13 +51,17 @@ public class VehicleList extends SherlockListActivity {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.vehiclelist);
 		mDbHelper = new FuelMonitorDbAdapter(this);
+		mThumbnails = ThumbnailCache.getInstance(this);
 		Button addVehicle = (Button) findViewById(R.id.vehiclelist_addvehicle);
 
+		mListView = (ListView) findViewById(android.R.id.list);
+		mListView.setEmptyView(findViewById(android.R.id.empty));
+
 		mDbHelper.open();
 
 		fillData();
 
-		registerForContextMenu(getListView());
+		registerForContextMenu(mListView);
 
 		addVehicle.setOnClickListener(new View.OnClickListener() {
 
@@ -61,7 +71,7 @@ public class VehicleList extends SherlockListActivity {
 			}
 		});
 
-		getListView().setOnItemClickListener(new OnItemClickListener() {
+		mListView.setOnItemClickListener(new OnItemClickListener() {
 
 			public void onItemClick(AdapterView<?> adapter, View view,
 					int position, long arg) {
@@ -74,6 +84,34 @@ public class VehicleList extends SherlockListActivity {
 		});
 	}
 	
+	/**
+	 * Populates the options menu with the export actions
+	 */
+	@Override
+	public boolean onCreateOptionsMenu(com.actionbarsherlock.view.Menu menu) {
+		menu.add(0, MENU_EXPORT_CSV, 0, R.string.export_csv);
+		menu.add(0, MENU_EXPORT_TSV, 0, R.string.export_tsv);
+		return super.onCreateOptionsMenu(menu);
+	}
+
+	/**
+	 * Exports the vehicles and all their fuelings when an export action is
+	 * selected
+	 */
+	@Override
+	public boolean onOptionsItemSelected(
+			com.actionbarsherlock.view.MenuItem item) {
+		switch (item.getItemId()) {
+		case MENU_EXPORT_CSV:
+			new ExportTask(this, FuelMonitorExporter.CSV, 0).execute();
+			return true;
+		case MENU_EXPORT_TSV:
+			new ExportTask(this, FuelMonitorExporter.TSV, 0).execute();
+			return true;
+		}
+		return super.onOptionsItemSelected(item);
+	}
+
 	/**
 	 * A function to populate the context menu that is visible in the press long of a vehicle
 	 * @param v the vehicle
@@ -107,15 +145,11 @@ public class VehicleList extends SherlockListActivity {
 			startActivity(i);
 			return true;
 		case Menu.FIRST + 1:
-			File directory = new File(
-					Environment.getExternalStorageDirectory(), "fuelmonitor/");
 			String registration = mDbHelper.getRegistrationByID(id);
-			File imgFile = new File(directory, (registration + ".jpg"));
-			File thumbFile = new File(directory, (registration + "t.jpg"));
-			imgFile.delete();
-			thumbFile.delete();
+			VehiclePhotos.delete(registration);
+			mThumbnails.invalidate(registration);
+			// the list is reloaded by its loader
 			mDbHelper.deleteVehicle(id);
-			fillData();
 			return true;
 		}
 		return super.onContextItemSelected(item);
@@ -125,27 +159,22 @@ public class VehicleList extends SherlockListActivity {
 	 * Fills all the list with the vehicles objects
 	 */
 	private void fillData() {
-		Cursor vehicleCursor = mDbHelper.fetchVehicles();
-		// TODO Use a CursorLoader (startManagingCursor is deprecated)
 		// TODO Perhaps save thumbnail to database?
-		startManagingCursor(vehicleCursor);
-		SimpleCursorAdapter vehicleAdapter = new SimpleCursorAdapter(this,
-				R.layout.vehiclerow, vehicleCursor, new String[] { "makeName",
-						"model", "registration", "registration", "_id" },
-				new int[] { R.id.vehicleRow_make, R.id.vehicleRow_model,
+		mVehicleAdapter = new SimpleCursorAdapter(this, R.layout.vehiclerow,
+				null, new String[] { "makeName", "model", "registration",
+						"registration", "avgConsumption" }, new int[] {
+						R.id.vehicleRow_make, R.id.vehicleRow_model,
 						R.id.vehicleRow_pic, R.id.vehicleRow_registration,
-						R.id.vehicleRow_avgConsumption });
-		vehicleAdapter.setViewBinder(new ViewBinder() {
+						R.id.vehicleRow_avgConsumption }, 0);
+		mVehicleAdapter.setViewBinder(new ViewBinder() {
 
 			public boolean setViewValue(View view, Cursor cursor,
 					int columnIndex) {
 				if (view.getId() == R.id.vehicleRow_avgConsumption) {
-					if (mDbHelper.getNumFuelings(cursor
-							.getInt(columnIndex)) > 0) {
+					if (!cursor.isNull(columnIndex)) {
 						TextView text = (TextView) view;
-						text.setText(String.format("%.1f l/100Km", mDbHelper
-								.getAverageFuelConsumptionByVehicleID(cursor
-										.getInt(columnIndex))));
+						text.setText(String.format("%.1f l/100Km",
+								cursor.getFloat(columnIndex)));
 					}
 					return true;
 				}
@@ -155,21 +184,38 @@ public class VehicleList extends SherlockListActivity {
 					return true;
 				}
 				if (view.getId() == R.id.vehicleRow_pic) {
-					ImageView image = (ImageView) view;
-					File directory = new File(Environment
-							.getExternalStorageDirectory(), "fuelmonitor/");
-					File file = new File(directory, (cursor
-							.getString(columnIndex) + "t.jpg"));
-					if (file.exists() && file.length() > 0)
-						image.setImageBitmap(BitmapFactory.decodeFile(file
-								.getAbsolutePath()));
+					mThumbnails.loadThumbnail(cursor.getString(columnIndex),
+							(ImageView) view);
 					return true;
 
 				}
 				return false;
 			}
 		});
-		getListView().setAdapter(vehicleAdapter);
+		mListView.setAdapter(mVehicleAdapter);
+		getSupportLoaderManager().initLoader(0, null, this);
+	}
+
+	/**
+	 * Creates the loader of the vehicles
+	 */
+	public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+		return new FuelMonitorCursorLoader(this,
+				FuelMonitorCursorLoader.VEHICLES, 0);
+	}
+
+	/**
+	 * Shows the vehicles once they are loaded
+	 */
+	public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+		mVehicleAdapter.swapCursor(data);
+	}
+
+	/**
+	 * Releases the vehicles cursor
+	 */
+	public void onLoaderReset(Loader<Cursor> loader) {
+		mVehicleAdapter.swapCursor(null);
 	}
 
 	/**
@@ -0,0 +1,179 @@
+package org.feup.fuelmonitor;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.os.Environment;
+import android.util.Log;
+
+/**
+ * VehiclePhotos - The files of the vehicle photos on the external storage.
+ * Each vehicle has the photo taken by the camera, a preview for detail
+ * screens and a thumbnail for the lists, all named after its registration.
+ */
+public class VehiclePhotos {
+
+	private static final String TAG = "FuelMonitorVehiclePhotos";
+	private static final int PREVIEW_SIZE = 640; /* longest side, in pixels */
+	private static final int PREVIEW_QUALITY = 80;
+	private static final int THUMBNAIL_SIZE = 160; /* longest side, in pixels */
+	private static final int THUMBNAIL_QUALITY = 60;
+
+	/**
+	 * @return the directory of the photos
+	 */
+	public static File getDirectory() {
+		return new File(Environment.getExternalStorageDirectory(),
+				"fuelmonitor/");
+	}
+
+	/**
+	 * @return the file of the photo taken by the camera
+	 */
+	public static File getPhotoFile(String registration) {
+		return new File(getDirectory(), (registration + ".jpg"));
+	}
+
+	/**
+	 * @return the file of the preview of the photo
+	 */
+	public static File getPreviewFile(String registration) {
+		return new File(getDirectory(), (registration + "p.jpg"));
+	}
+
+	/**
+	 * @return the file of the thumbnail of the photo
+	 */
+	public static File getThumbnailFile(String registration) {
+		return new File(getDirectory(), (registration + "t.jpg"));
+	}
+
+	/**
+	 * Renames the files of a vehicle whose registration changed
+	 */
+	public static void rename(String oldRegistration, String newRegistration) {
+		getPhotoFile(oldRegistration).renameTo(getPhotoFile(newRegistration));
+		getPreviewFile(oldRegistration).renameTo(
+				getPreviewFile(newRegistration));
+		getThumbnailFile(oldRegistration).renameTo(
+				getThumbnailFile(newRegistration));
+	}
+
+	/**
+	 * Deletes the files of a vehicle
+	 */
+	public static void delete(String registration) {
+		getPhotoFile(registration).delete();
+		getPreviewFile(registration).delete();
+		getThumbnailFile(registration).delete();
+	}
+
+	/**
+	 * Writes the preview and the thumbnail of the photo of a vehicle. The
+	 * photo is decoded only once, subsampled to about the preview size, so
+	 * the full resolution image is never held in memory. Takes a while, must
+	 * not be called on the main thread.
+	 *
+	 * @param registration
+	 *            the registration of the vehicle
+	 * @return true if both files were written
+	 */
+	public static boolean createScaledCopies(String registration) {
+		String path = getPhotoFile(registration).getAbsolutePath();
+
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(path, options);
+		if (options.outWidth <= 0 || options.outHeight <= 0) {
+			Log.e(TAG, "Error reading photo file");
+			return false;
+		}
+
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = getSampleSize(options.outWidth,
+				options.outHeight, PREVIEW_SIZE);
+		options.inPreferredConfig = Bitmap.Config.RGB_565;
+		Bitmap sampled = BitmapFactory.decodeFile(path, options);
+		if (sampled == null) {
+			Log.e(TAG, "Error decoding photo file");
+			return false;
+		}
+
+		Bitmap preview = scaleToFit(sampled, PREVIEW_SIZE);
+		if (preview != sampled)
+			sampled.recycle();
+		boolean written = write(preview, getPreviewFile(registration),
+				PREVIEW_QUALITY);
+
+		Bitmap thumbnail = scaleToFit(preview, THUMBNAIL_SIZE);
+		written &= write(thumbnail, getThumbnailFile(registration),
+				THUMBNAIL_QUALITY);
+
+		if (thumbnail != preview)
+			thumbnail.recycle();
+		preview.recycle();
+		return written;
+	}
+
+	/**
+	 * @return the largest power of two that keeps the longest side of the
+	 *         decoded image at least the given size
+	 */
+	private static int getSampleSize(int width, int height, int size) {
+		int longest = Math.max(width, height);
+		int sampleSize = 1;
+		while (longest / (sampleSize * 2) >= size)
+			sampleSize *= 2;
+		return sampleSize;
+	}
+
+	/**
+	 * @return the bitmap scaled down so its longest side is the given size,
+	 *         or the same bitmap if it is already small enough
+	 */
+	private static Bitmap scaleToFit(Bitmap bitmap, int size) {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		int longest = Math.max(width, height);
+		if (longest <= size)
+			return bitmap;
+		return Bitmap.createScaledBitmap(bitmap, width * size / longest,
+				height * size / longest, true);
+	}
+
+	/**
+	 * Writes a bitmap as a JPEG. It is written to a temporary file first, so
+	 * readers never see a half written image.
+	 */
+	private static boolean write(Bitmap bitmap, File file, int quality) {
+		File tempFile = new File(file.getPath() + ".tmp");
+		OutputStream out = null;
+		boolean written = false;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(tempFile));
+			written = bitmap.compress(CompressFormat.JPEG, quality, out);
+		} catch (IOException e) {
+			Log.e(TAG, "Error writing " + file.getName());
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					Log.e(TAG, "Error writing " + file.getName());
+					written = false;
+				}
+			}
+		}
+		if (written)
+			written = tempFile.renameTo(file);
+		if (!written)
+			tempFile.delete();
+		return written;
+	}
+}
@@ -0,0 +1,57 @@
+package org.feup.fuelmonitor.analytics;
+
+/**
+ * CivilDate - Converts between dates and day numbers, the number of days since
+ * 1970-01-01 stored in the Fueling day column. Years are counted from March,
+ * so the leap day is the last day of the year and the length of a month
+ * doesn't depend on the year.
+ */
+public class CivilDate {
+
+	private CivilDate() {
+	}
+
+	/**
+	 * @param year
+	 *            the year
+	 * @param month
+	 *            the month (starting at 1)
+	 * @param dayOfMonth
+	 *            the day of the month
+	 * @return the number of days since 1970-01-01
+	 */
+	public static int toEpochDay(int year, int month, int dayOfMonth) {
+		int y = month <= 2 ? year - 1 : year;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5
+				+ dayOfMonth - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+				+ dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/**
+	 * The inverse of toEpochDay, for the years of a yyyy-MM-dd date (1 to
+	 * 9999)
+	 *
+	 * @param epochDay
+	 *            the number of days since 1970-01-01
+	 * @return the date as year * 10000 + month * 100 + dayOfMonth (months
+	 *         starting at 1), e.g. 20130215
+	 */
+	public static int fromEpochDay(int epochDay) {
+		int z = epochDay + 719468;
+		int era = (z >= 0 ? z : z - 146096) / 146097;
+		int dayOfEra = z - era * 146097;
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra
+				/ 146096) / 365;
+		int dayOfYear = dayOfEra
+				- (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int mp = (5 * dayOfYear + 2) / 153;
+		int dayOfMonth = dayOfYear - (153 * mp + 2) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+		return year * 10000 + month * 100 + dayOfMonth;
+	}
+}
@@ -0,0 +1,184 @@
+package org.feup.fuelmonitor.analytics;
+
+/**
+ * ConsumptionAnalytics - The consumption statistics of a FuelingSeries, each
+ * computed in a single pass over its arrays. Every consumption is in l/100km,
+ * counting the litres of a fueling against the kms driven since the previous
+ * one (full tank to full tank); it's 0 when there are no kms to count.
+ */
+public class ConsumptionAnalytics {
+
+	/**
+	 * The totals of a series
+	 */
+	public static class Totals {
+		public final int fuelings;
+		public final int distance; /* kms */
+		public final double litres;
+		public final double cost;
+
+		public Totals(int fuelings, int distance, double litres, double cost) {
+			this.fuelings = fuelings;
+			this.distance = distance;
+			this.litres = litres;
+			this.cost = cost;
+		}
+
+		public float getConsumption() {
+			return consumption(litres, distance);
+		}
+
+		public float getCostPerKm() {
+			return distance > 0 ? (float) (cost / distance) : 0;
+		}
+	}
+
+	/**
+	 * Sums of litres, kms and cost per group (month or driving style)
+	 */
+	public static class Breakdown {
+		public final int[] fuelings;
+		public final int[] distance;
+		public final double[] litres;
+		public final double[] cost;
+
+		Breakdown(int groups) {
+			fuelings = new int[groups];
+			distance = new int[groups];
+			litres = new double[groups];
+			cost = new double[groups];
+		}
+
+		public int size() {
+			return fuelings.length;
+		}
+
+		public float getConsumption(int group) {
+			return consumption(litres[group], distance[group]);
+		}
+
+		public float getCostPerKm(int group) {
+			return distance[group] > 0 ? (float) (cost[group] / distance[group])
+					: 0;
+		}
+
+		void add(FuelingSeries series, int i, int group) {
+			fuelings[group]++;
+			distance[group] += series.getDistance(i);
+			litres[group] += series.mLitres[i];
+			cost[group] += series.mCost[i];
+		}
+	}
+
+	/**
+	 * Driving styles, the groups of byDrivingStyle
+	 */
+	public static final int STYLE_CALM = 1;
+	public static final int STYLE_NORMAL = 2;
+	public static final int STYLE_AGGRESSIVE = 3;
+
+	private static float consumption(double litres, int distance) {
+		return distance > 0 ? (float) (litres * 100 / distance) : 0;
+	}
+
+	/**
+	 * @return the totals of every fueling of the series
+	 */
+	public static Totals totals(FuelingSeries series) {
+		int size = series.mSize;
+		double litres = 0;
+		double cost = 0;
+		for (int i = 0; i < size; i++) {
+			litres += series.mLitres[i];
+			cost += series.mCost[i];
+		}
+		int distance = size == 0 ? 0 : series.mKms[size - 1]
+				- series.getInitialKms();
+		return new Totals(size, distance, litres, cost);
+	}
+
+	/**
+	 * Computes the consumption over the last fuelings up to each fueling,
+	 * keeping running sums instead of adding up every window
+	 *
+	 * @param window
+	 *            the number of fuelings averaged, 1 for the consumption of
+	 *            each fueling alone
+	 * @return the consumption at every fueling of the series
+	 */
+	public static float[] rollingConsumption(FuelingSeries series, int window) {
+		if (window < 1)
+			throw new IllegalArgumentException("Window of " + window);
+		int size = series.mSize;
+		float[] result = new float[size];
+		double litres = 0;
+		int distance = 0;
+		for (int i = 0; i < size; i++) {
+			litres += series.mLitres[i];
+			distance += series.getDistance(i);
+			if (i >= window) {
+				litres -= series.mLitres[i - window];
+				distance -= series.getDistance(i - window);
+			}
+			result[i] = consumption(litres, distance);
+		}
+		return result;
+	}
+
+	/**
+	 * Groups the fuelings by month
+	 *
+	 * @param fromMonth
+	 *            the first month, as returned by toMonth
+	 * @param months
+	 *            the number of months
+	 * @return the sums of every month, month fromMonth + i in group i
+	 */
+	public static Breakdown byMonth(FuelingSeries series, int fromMonth,
+			int months) {
+		Breakdown result = new Breakdown(months);
+		int size = series.mSize;
+		for (int i = 0; i < size; i++) {
+			int group = toMonth(series.mDay[i]) - fromMonth;
+			if (group >= 0 && group < months)
+				result.add(series, i, group);
+		}
+		return result;
+	}
+
+	/**
+	 * Groups the fuelings by driving style
+	 *
+	 * @return the sums of every driving style, in the group of its STYLE_
+	 *         constant (group 0 holds the fuelings without a known style)
+	 */
+	public static Breakdown byDrivingStyle(FuelingSeries series) {
+		Breakdown result = new Breakdown(STYLE_AGGRESSIVE + 1);
+		int size = series.mSize;
+		for (int i = 0; i < size; i++) {
+			int style = series.mDrivingStyle[i];
+			result.add(series, i, style >= STYLE_CALM
+					&& style <= STYLE_AGGRESSIVE ? style : 0);
+		}
+		return result;
+	}
+
+	/**
+	 * Converts a day to a month number that grows by one every month
+	 *
+	 * @param day
+	 *            the number of days since 1970-01-01
+	 * @return year * 12 + month - 1 (months starting at 1)
+	 */
+	public static int toMonth(int day) {
+		int date = CivilDate.fromEpochDay(day);
+		return toMonth(date / 10000, date / 100 % 100);
+	}
+
+	/**
+	 * @return the month number of a year and month, as toMonth
+	 */
+	public static int toMonth(int year, int month) {
+		return year * 12 + month - 1;
+	}
+}
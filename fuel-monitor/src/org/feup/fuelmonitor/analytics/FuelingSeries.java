@@ -0,0 +1,138 @@
+package org.feup.fuelmonitor.analytics;
+
+/**
+ * FuelingSeries - The fuelings of one vehicle in primitive arrays, in kms
+ * order, for ConsumptionAnalytics. Holds no reference to the database, so it
+ * can be built and used on any thread (and on the plain JVM).
+ */
+public class FuelingSeries {
+
+	private final int mInitialKms;
+	private final boolean mSnapshot; /* shares the arrays of another series */
+	int mSize;
+	int[] mKms;
+	float[] mLitres;
+	float[] mCost;
+	int[] mDay; /* days since 1970-01-01 */
+	byte[] mDrivingStyle; /* 1 calm, 2 normal, 3 aggressive */
+
+	/**
+	 * @param initialKms
+	 *            the kms of the vehicle when it was added, the start of the
+	 *            first fueling's distance
+	 * @param capacity
+	 *            the number of fuelings expected, the arrays grow if needed
+	 */
+	public FuelingSeries(int initialKms, int capacity) {
+		mInitialKms = initialKms;
+		capacity = Math.max(capacity, 8);
+		mKms = new int[capacity];
+		mLitres = new float[capacity];
+		mCost = new float[capacity];
+		mDay = new int[capacity];
+		mDrivingStyle = new byte[capacity];
+		mSnapshot = false;
+	}
+
+	private FuelingSeries(FuelingSeries source) {
+		mInitialKms = source.mInitialKms;
+		mSnapshot = true;
+		mSize = source.mSize;
+		mKms = source.mKms;
+		mLitres = source.mLitres;
+		mCost = source.mCost;
+		mDay = source.mDay;
+		mDrivingStyle = source.mDrivingStyle;
+	}
+
+	/**
+	 * Returns a read only copy of the fuelings added so far, without copying
+	 * them: the fuelings added to this series later are written past the end
+	 * of the snapshot, or to new arrays once these are full, so a snapshot can
+	 * be read on another thread while this series grows
+	 */
+	public FuelingSeries snapshot() {
+		return new FuelingSeries(this);
+	}
+
+	/**
+	 * Appends a fueling. Fuelings must be added in (kms, id) order
+	 *
+	 * @throws IllegalArgumentException
+	 *             if kms is lower than the kms of the previous fueling
+	 * @throws IllegalStateException
+	 *             if the series is a snapshot
+	 */
+	public void add(int kms, float litres, float cost, int day,
+			int drivingStyle) {
+		if (mSnapshot)
+			throw new IllegalStateException("Adding to a snapshot");
+		if (mSize > 0 && kms < mKms[mSize - 1])
+			throw new IllegalArgumentException("Fuelings out of kms order: "
+					+ kms + " after " + mKms[mSize - 1]);
+		if (mSize == mKms.length)
+			grow();
+		mKms[mSize] = kms;
+		mLitres[mSize] = litres;
+		mCost[mSize] = cost;
+		mDay[mSize] = day;
+		mDrivingStyle[mSize] = (byte) drivingStyle;
+		mSize++;
+	}
+
+	private void grow() {
+		int capacity = mKms.length * 2;
+		int[] kms = new int[capacity];
+		float[] litres = new float[capacity];
+		float[] cost = new float[capacity];
+		int[] day = new int[capacity];
+		byte[] drivingStyle = new byte[capacity];
+		System.arraycopy(mKms, 0, kms, 0, mSize);
+		System.arraycopy(mLitres, 0, litres, 0, mSize);
+		System.arraycopy(mCost, 0, cost, 0, mSize);
+		System.arraycopy(mDay, 0, day, 0, mSize);
+		System.arraycopy(mDrivingStyle, 0, drivingStyle, 0, mSize);
+		mKms = kms;
+		mLitres = litres;
+		mCost = cost;
+		mDay = day;
+		mDrivingStyle = drivingStyle;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public int getInitialKms() {
+		return mInitialKms;
+	}
+
+	public int getKms(int i) {
+		return mKms[i];
+	}
+
+	public float getLitres(int i) {
+		return mLitres[i];
+	}
+
+	public float getCost(int i) {
+		return mCost[i];
+	}
+
+	public int getDay(int i) {
+		return mDay[i];
+	}
+
+	public int getDrivingStyle(int i) {
+		return mDrivingStyle[i];
+	}
+
+	/**
+	 * @return the kms driven since the previous fueling (or since the vehicle
+	 *         was added, for the first one), the same as the Fueling distance
+	 *         column
+	 */
+	public int getDistance(int i) {
+		return mKms[i] - (i == 0 ? mInitialKms : mKms[i - 1]);
+	}
+}
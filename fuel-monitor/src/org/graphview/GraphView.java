@@ -1,13 +1,37 @@
 package org.graphview;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Paint.Align;
+import android.graphics.Paint.Style;
+import android.graphics.Path;
+import android.view.MotionEvent;
 import android.view.View;
 
+import com.actionbarsherlock.internal.nineoldandroids.animation.ValueAnimator;
+import com.actionbarsherlock.internal.nineoldandroids.animation.ValueAnimator.AnimatorUpdateListener;
+
 /**
- * GraphView creates a scaled line or bar graph with x and y axis labels. 
+ * GraphView creates a scaled line or bar graph with x and y axis labels.
+ * The scale and the geometry of the bars or the line are computed when the
+ * data, the size or the viewport changes, and the grid, labels and title are
+ * drawn once to a bitmap, so a frame is a blit plus the bars or the line. A
+ * line with more values than pixel columns is decimated to the lowest and
+ * highest value of runs of values, at most one run per pixel column, so its
+ * cost depends on the width of the view, not on the number of values.
+ * The values come from a DataSource, read a window at a time: the values in
+ * the viewport plus a margin on each side, so panning doesn't read them again
+ * at every frame. A decimated line only reads the summary of each run, so the
+ * window never holds many more points than the view has pixel columns.
+ * A zoomable graph is zoomed with two fingers and panned with one.
+ * setData replaces the values of a graph already shown, animating the bars or
+ * the line from the old values to the new ones. Once the data and the
+ * viewport are set, drawing a frame allocates nothing.
+ * A source may give several series, e.g. one per vehicle: their bars are
+ * drawn side by side, or stacked with setStacked, and each gets its own line.
+ * The geometry of every series is computed in the same pass over the values.
  * @author Arno den Hond
  *
  */
@@ -16,21 +40,205 @@ public class GraphView extends View {
 	public static boolean BAR = true;
 	public static boolean LINE = false;
 
-	private Paint paint;
-	private float[] values;
+	/**
+	 * Gives the values of a graph, without having to hold them all in memory
+	 */
+	public interface DataSource {
+		/**
+		 * @return the number of values of each series
+		 */
+		int size();
+
+		/**
+		 * @return the number of series, at least 1
+		 */
+		int getSeriesCount();
+
+		/**
+		 * Copies the values from (inclusive) to to (exclusive) of every series
+		 * to the start of values, the values of each index together: value i
+		 * of series s goes to (i - from) * getSeriesCount() + s
+		 */
+		void getValues(int from, int to, float[] values);
+
+		/**
+		 * Copies the lowest and the highest value of every series in runs of
+		 * per values, from (inclusive) to to (exclusive), the last run maybe
+		 * shorter. The two values of run r of series s go to
+		 * 2 * r * getSeriesCount() + s and (2 * r + 1) * getSeriesCount() + s,
+		 * in the order they come in the run
+		 */
+		void getSummary(int from, int to, int per, float[] values);
+
+		/**
+		 * @return the label of a value, shown below a zoomable graph, or null
+		 */
+		String getLabel(int index);
+
+		/**
+		 * @return the name of a series, shown in the legend, or null
+		 */
+		String getSeriesName(int series);
+	}
+
+	/**
+	 * A source whose values may arrive after they're asked for, e.g. read
+	 * from a database in the background. Until then it gives any value, and
+	 * once they arrive it runs the listener on the main thread, for the graph
+	 * to read them again
+	 */
+	public interface AsyncSource extends DataSource {
+		/**
+		 * @param listener
+		 *            run when values arrive, null to stop telling
+		 */
+		void setOnChangeListener(Runnable listener);
+	}
+
+	/**
+	 * A source of values held in arrays, one per series
+	 */
+	public static class ArraySource implements DataSource {
+		private final float[][] values;
+		private final String[] names;
+
+		/**
+		 * @param values
+		 *            the values of each series, all of the same length
+		 * @param names
+		 *            the name of each series, null for no legend
+		 */
+		public ArraySource(float[][] values, String[] names) {
+			this.values = values;
+			this.names = names;
+		}
+
+		public int size() {
+			return values[0].length;
+		}
+
+		public int getSeriesCount() {
+			return values.length;
+		}
+
+		public void getValues(int from, int to, float[] values) {
+			int count = this.values.length;
+			for (int s = 0; s < count; s++) {
+				float[] series = this.values[s];
+				for (int i = from; i < to; i++)
+					values[(i - from) * count + s] = series[i];
+			}
+		}
+
+		public void getSummary(int from, int to, int per, float[] values) {
+			int count = this.values.length;
+			for (int s = 0; s < count; s++) {
+				float[] series = this.values[s];
+				for (int start = from, n = s; start < to; start += per, n += 2 * count) {
+					int end = Math.min(start + per, to);
+					int lowest = start;
+					int highest = start;
+					for (int i = start + 1; i < end; i++) {
+						if (series[i] < series[lowest])
+							lowest = i;
+						if (series[i] > series[highest])
+							highest = i;
+					}
+					values[n] = series[Math.min(lowest, highest)];
+					values[n + count] = series[Math.max(lowest, highest)];
+				}
+			}
+		}
+
+		public String getLabel(int index) {
+			return null;
+		}
+
+		public String getSeriesName(int series) {
+			return names == null ? null : names[series];
+		}
+	}
+
+	/**
+	 * The colors of the series, in turn
+	 */
+	private static final int[] SERIES_COLORS = { Color.LTGRAY, Color.CYAN,
+			Color.YELLOW, Color.MAGENTA, Color.GREEN, Color.RED };
+
+	private static final float BORDER = 20;
+	private static final float MIN_VISIBLE = 2; /* values shown at the highest zoom */
+	private static final float MIN_PINCH = 20; /* pixels between the fingers */
+	private static final long ANIMATION_DURATION = 300; /* ms */
+
+	private final Paint gridPaint;
+	private final Paint labelPaint;
+	private final Paint[] windowLabelPaints; /* left, center, right */
+	private Paint[] dataPaints; /* the bars and the legend of each series */
+	private Paint[] linePaints;
+	private DataSource source;
 	private String[] horlabels;
 	private String[] verlabels;
 	private String title;
 	private boolean type;
+	private int seriesCount;
+	private boolean stacked;
+
+	private float[] window; /* the values read from the source */
+	private float[] summary; /* the lowest and highest values of runs, read from the source */
+	private int summaryFrom;
+	private int summaryTo;
+	private int summaryPer; /* the values of each run, 0 if summary holds nothing */
+	private float[] shown; /* the values in the viewport, as drawn, of every series */
+	private int shownCount; /* the values of each series in shown */
+	private float[] previous; /* the values shown before setData */
+	private int previousCount;
+	private float progress = 1; /* from the previous values to the source values */
+	private ValueAnimator animator;
+	private final String[] windowLabels; /* left, center, right */
+	private final int[] windowLabelIndexes;
+	private int windowFrom;
+	private int windowTo;
+	private final Runnable sourceChanged; /* told by an AsyncSource */
+	private float viewStart; /* the value at the left edge, may be fractional */
+	private float viewCount; /* the number of values across the graph */
+	private boolean zoomable;
+
+	private float lastX; /* of the finger panning */
+	private boolean pinching;
+	private boolean panning;
+	private float pinchDistance; /* between the fingers when the pinch started */
+	private float pinchCount; /* viewCount when the pinch started */
+	private float pinchValue; /* the value under the middle of the fingers */
+
+	private float[] geometry; /* left, top, right, bottom of each bar, series after series */
+	private int geometryLength; /* floats used in geometry, 0 if there's nothing to draw */
+	private Path[] lines; /* of each series */
+	private boolean lineEmpty;
+	private boolean geometryValid;
+	private Bitmap layer; /* grid, labels and title */
+	private final Canvas layerCanvas;
+	private boolean layerValid;
 
 	public GraphView(Context context, float[] values, String title, String[] horlabels, String[] verlabels, boolean type) {
+		this(context, new ArraySource(new float[][] { values == null ? new float[0] : values }, null), title, horlabels, verlabels, type);
+	}
+
+	public GraphView(Context context, DataSource source, String title, String[] horlabels, String[] verlabels, boolean type) {
 		super(context);
-		if (values == null)
-			values = new float[0];
-		else
-			this.values = values;
+		sourceChanged = new Runnable() {
+			public void run() {
+				// the values read so far may be the ones given meanwhile
+				windowFrom = 0;
+				windowTo = 0;
+				summaryPer = 0;
+				windowLabelIndexes[0] = windowLabelIndexes[1] = windowLabelIndexes[2] = -1;
+				geometryValid = false;
+				invalidate();
+			}
+		};
+		setSource(source);
 		if (title == null)
-			title = "";
+			this.title = "";
 		else
 			this.title = title;
 		if (horlabels == null)
@@ -42,89 +250,517 @@ public class GraphView extends View {
 		else
 			this.verlabels = verlabels;
 		this.type = type;
-		paint = new Paint();
+		window = new float[0];
+		summary = new float[0];
+		shown = new float[0];
+		previous = new float[0];
+		viewCount = source.size();
+		windowLabels = new String[3];
+		windowLabelIndexes = new int[] { -1, -1, -1 };
+		layerCanvas = new Canvas();
+		gridPaint = new Paint();
+		gridPaint.setColor(Color.DKGRAY);
+		labelPaint = new Paint();
+		labelPaint.setColor(Color.WHITE);
+		windowLabelPaints = new Paint[3];
+		Align[] aligns = { Align.LEFT, Align.CENTER, Align.RIGHT };
+		for (int i = 0; i < windowLabelPaints.length; i++) {
+			windowLabelPaints[i] = new Paint(labelPaint);
+			windowLabelPaints[i].setTextAlign(aligns[i]);
+		}
+		dataPaints = new Paint[0];
+		linePaints = new Paint[0];
+		lines = new Path[0];
+		setSeriesCount(source.getSeriesCount());
+	}
+
+	/**
+	 * Replaces the source, listening to it if its values arrive later
+	 */
+	private void setSource(DataSource source) {
+		if (this.source instanceof AsyncSource)
+			((AsyncSource) this.source).setOnChangeListener(null);
+		this.source = source;
+		if (source instanceof AsyncSource)
+			((AsyncSource) source).setOnChangeListener(sourceChanged);
+	}
+
+	/**
+	 * Makes sure there are paints and paths for every series
+	 */
+	private void setSeriesCount(int count) {
+		seriesCount = count;
+		if (dataPaints.length >= count)
+			return;
+		Paint[] paints = new Paint[count];
+		Paint[] strokes = new Paint[count];
+		Path[] paths = new Path[count];
+		System.arraycopy(dataPaints, 0, paints, 0, dataPaints.length);
+		System.arraycopy(linePaints, 0, strokes, 0, linePaints.length);
+		System.arraycopy(lines, 0, paths, 0, lines.length);
+		for (int s = dataPaints.length; s < count; s++) {
+			paints[s] = new Paint();
+			paints[s].setColor(SERIES_COLORS[s % SERIES_COLORS.length]);
+			paints[s].setTextAlign(Align.RIGHT);
+			strokes[s] = new Paint(paints[s]);
+			strokes[s].setStyle(Style.STROKE);
+			paths[s] = new Path();
+		}
+		dataPaints = paints;
+		linePaints = strokes;
+		lines = paths;
+	}
+
+	/**
+	 * Stacks the bars of the series of each value instead of drawing them
+	 * side by side, the scale then starts at 0
+	 */
+	public void setStacked(boolean stacked) {
+		if (stacked == this.stacked)
+			return;
+		this.stacked = stacked;
+		geometryValid = false;
+		invalidate();
+	}
+
+	/**
+	 * Lets the user zoom and pan the graph
+	 */
+	public void setZoomable(boolean zoomable) {
+		this.zoomable = zoomable;
+	}
+
+	/**
+	 * Replaces the values shown, see setData(DataSource, ...)
+	 */
+	public void setData(float[] values, String title, String[] horlabels, boolean type) {
+		setData(new ArraySource(new float[][] { values == null ? new float[0] : values }, null), title, horlabels, type);
+	}
+
+	/**
+	 * Replaces the values shown, animating from the values shown now to the
+	 * new ones (each bar or point from the one at the same position). The
+	 * viewport is reset to every value
+	 */
+	public void setData(DataSource source, String title, String[] horlabels, boolean type) {
+		// the values on screen, maybe halfway through another animation
+		if (previous.length < shownCount * seriesCount)
+			previous = new float[shownCount * seriesCount];
+		System.arraycopy(shown, 0, previous, 0, shownCount * seriesCount);
+		previousCount = type == this.type && source.getSeriesCount() == seriesCount ? shownCount : 0;
+
+		setSource(source);
+		this.title = title == null ? "" : title;
+		this.horlabels = horlabels == null ? new String[0] : horlabels;
+		this.type = type;
+		setSeriesCount(source.getSeriesCount());
+		windowFrom = 0;
+		windowTo = 0;
+		summaryPer = 0;
+		windowLabelIndexes[0] = windowLabelIndexes[1] = windowLabelIndexes[2] = -1;
+		viewStart = 0;
+		viewCount = source.size();
+		layerValid = false;
+		geometryValid = false;
+
+		if (animator == null) {
+			animator = ValueAnimator.ofFloat(0, 1).setDuration(ANIMATION_DURATION);
+			animator.addUpdateListener(new AnimatorUpdateListener() {
+				public void onAnimationUpdate(ValueAnimator animation) {
+					progress = animation.getAnimatedFraction();
+					geometryValid = false;
+					invalidate();
+				}
+			});
+		}
+		animator.cancel();
+		if (previousCount > 0) {
+			progress = 0;
+			animator.start();
+		} else
+			progress = 1;
+		invalidate();
+	}
+
+	/**
+	 * Shows a range of the values, kept within the values of the source
+	 *
+	 * @param start
+	 *            the value at the left edge of the graph
+	 * @param count
+	 *            the number of values across the graph
+	 */
+	public void setViewport(float start, float count) {
+		int size = source.size();
+		count = Math.max(Math.min(count, size), Math.min(MIN_VISIBLE, size));
+		start = Math.max(Math.min(start, size - count), 0);
+		if (start == viewStart && count == viewCount)
+			return;
+		viewStart = start;
+		viewCount = count;
+		geometryValid = false;
+		invalidate();
+	}
+
+	public float getViewStart() {
+		return viewStart;
+	}
+
+	public float getViewCount() {
+		return viewCount;
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		geometryValid = false;
+		layerValid = false;
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		if (animator != null) {
+			animator.cancel();
+			progress = 1;
+		}
+		if (layer != null) {
+			layer.recycle();
+			layer = null;
+		}
+		layerValid = false;
 	}
 
 	@Override
 	protected void onDraw(Canvas canvas) {
-		float border = 20;
+		if (getWidth() <= 0 || getHeight() <= 0)
+			return;
+		if (!layerValid)
+			drawLayer();
+		if (!geometryValid)
+			computeGeometry();
+
+		canvas.drawBitmap(layer, 0, 0, null);
+		canvas.save();
+		canvas.clipRect(BORDER * 2, 0, getWidth(), getHeight());
+		if (type == BAR) {
+			for (int i = 0, s = 0; i < geometryLength; i += 4) {
+				canvas.drawRect(geometry[i], geometry[i + 1], geometry[i + 2], geometry[i + 3], dataPaints[s]);
+				if (++s == seriesCount)
+					s = 0;
+			}
+		} else if (!lineEmpty) {
+			for (int s = 0; s < seriesCount; s++)
+				canvas.drawPath(lines[s], linePaints[s]);
+		}
+		canvas.restore();
+		if (zoomable && horlabels.length == 0)
+			drawWindowLabels(canvas);
+	}
+
+	/**
+	 * Draws the labels of the first, middle and last values in the viewport
+	 */
+	private void drawWindowLabels(Canvas canvas) {
+		if (viewCount < 1)
+			return;
+		float horstart = BORDER * 2;
+		float graphwidth = getGraphWidth();
+		float y = getHeight() - 4;
+		for (int i = 0; i < windowLabelPaints.length; i++) {
+			int index = Math.min((int) (viewStart + (viewCount - 1) * i / 2 + 0.5f), source.size() - 1);
+			// labels are only asked for when the value under them changes
+			if (index != windowLabelIndexes[i]) {
+				windowLabels[i] = source.getLabel(index);
+				windowLabelIndexes[i] = index;
+			}
+			if (windowLabels[i] != null)
+				canvas.drawText(windowLabels[i], horstart + graphwidth * i / 2, y, windowLabelPaints[i]);
+		}
+	}
+
+	@Override
+	public boolean onTouchEvent(MotionEvent event) {
+		if (!zoomable)
+			return super.onTouchEvent(event);
+		switch (event.getAction() & MotionEvent.ACTION_MASK) {
+		case MotionEvent.ACTION_DOWN:
+			lastX = event.getX();
+			panning = true;
+			pinching = false;
+			// the graph may be inside a scrolling view
+			if (getParent() != null)
+				getParent().requestDisallowInterceptTouchEvent(true);
+			return true;
+		case MotionEvent.ACTION_POINTER_DOWN:
+			if (event.getPointerCount() == 2) {
+				pinchDistance = Math.abs(event.getX(0) - event.getX(1));
+				pinching = pinchDistance >= MIN_PINCH;
+				pinchCount = viewCount;
+				pinchValue = valueAt((event.getX(0) + event.getX(1)) / 2);
+				// panning resumes with the next touch, not with the finger left
+				panning = false;
+			}
+			return true;
+		case MotionEvent.ACTION_MOVE:
+			if (pinching && event.getPointerCount() >= 2) {
+				float distance = Math.max(Math.abs(event.getX(0) - event.getX(1)), 1);
+				float count = pinchCount * pinchDistance / distance;
+				float center = (event.getX(0) + event.getX(1)) / 2;
+				// the value under the fingers stays under them
+				setViewport(pinchValue - (center - BORDER * 2) / getGraphWidth() * count, count);
+			} else if (panning) {
+				float x = event.getX();
+				setViewport(viewStart - (x - lastX) / getGraphWidth() * viewCount, viewCount);
+				lastX = x;
+			}
+			return true;
+		case MotionEvent.ACTION_POINTER_UP:
+			pinching = false;
+			return true;
+		case MotionEvent.ACTION_UP:
+			performClick();
+			pinching = false;
+			panning = false;
+			return true;
+		case MotionEvent.ACTION_CANCEL:
+			pinching = false;
+			panning = false;
+			return true;
+		}
+		return super.onTouchEvent(event);
+	}
+
+	/**
+	 * @return the value, fractional, at an x coordinate of the view
+	 */
+	private float valueAt(float x) {
+		return viewStart + (x - BORDER * 2) / getGraphWidth() * viewCount;
+	}
+
+	private float getGraphWidth() {
+		return getWidth() - 1 - (2 * BORDER);
+	}
+
+	/**
+	 * Draws the grid, the labels and the title to the layer bitmap
+	 */
+	private void drawLayer() {
+		int w = getWidth();
+		int h = getHeight();
+		if (layer == null || layer.getWidth() != w || layer.getHeight() != h) {
+			if (layer != null)
+				layer.recycle();
+			layer = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+		} else
+			layer.eraseColor(Color.TRANSPARENT);
+		Canvas canvas = layerCanvas;
+		canvas.setBitmap(layer);
+
+		float border = BORDER;
 		float horstart = border * 2;
-		float height = getHeight();
-		float width = getWidth() - 1;
-		float max = getMax();
-		float min = getMin();
-		float diff = max - min;
+		float height = h;
+		float width = w - 1;
 		float graphheight = height - (2 * border);
 		float graphwidth = width - (2 * border);
 
-		paint.setTextAlign(Align.LEFT);
+		labelPaint.setTextAlign(Align.LEFT);
 		int vers = verlabels.length - 1;
 		for (int i = 0; i < verlabels.length; i++) {
-			paint.setColor(Color.DKGRAY);
 			float y = ((graphheight / vers) * i) + border;
-			canvas.drawLine(horstart, y, width, y, paint);
-			paint.setColor(Color.WHITE);
-			canvas.drawText(verlabels[i], 0, y, paint);
+			canvas.drawLine(horstart, y, width, y, gridPaint);
+			canvas.drawText(verlabels[i], 0, y, labelPaint);
 		}
 		int hors = horlabels.length - 1;
 		for (int i = 0; i < horlabels.length; i++) {
-			paint.setColor(Color.DKGRAY);
 			float x = ((graphwidth / hors) * i) + horstart;
-			canvas.drawLine(x, height - border, x, border, paint);
-			paint.setTextAlign(Align.CENTER);
+			canvas.drawLine(x, height - border, x, border, gridPaint);
+			labelPaint.setTextAlign(Align.CENTER);
 			if (i==horlabels.length-1)
-				paint.setTextAlign(Align.RIGHT);
+				labelPaint.setTextAlign(Align.RIGHT);
 			if (i==0)
-				paint.setTextAlign(Align.LEFT);
-			paint.setColor(Color.WHITE);
-			canvas.drawText(horlabels[i], x, height - 4, paint);
-		}
-
-		paint.setTextAlign(Align.CENTER);
-		canvas.drawText(title, (graphwidth / 2) + horstart, border - 4, paint);
-
-		if (max != min) {
-			paint.setColor(Color.LTGRAY);
-			if (type == BAR) {
-				float datalength = values.length;
-				float colwidth = (width - (2 * border)) / datalength;
-				for (int i = 0; i < values.length; i++) {
-					float val = values[i] - min;
-					float rat = val / diff;
-					float h = graphheight * rat;
-					canvas.drawRect((i * colwidth) + horstart, (border - h) + graphheight, ((i * colwidth) + horstart) + (colwidth - 1), height - (border - 1), paint);
-				}
-			} else {
-				float datalength = values.length;
-				float colwidth = (width - (2 * border)) / datalength;
-				float halfcol = colwidth / 2;
-				float lasth = 0;
-				for (int i = 0; i < values.length; i++) {
-					float val = values[i] - min;
-					float rat = val / diff;
-					float h = graphheight * rat;
-					if (i > 0)
-						canvas.drawLine(((i - 1) * colwidth) + (horstart + 1) + halfcol, (border - lasth) + graphheight, (i * colwidth) + (horstart + 1) + halfcol, (border - h) + graphheight, paint);
-					lasth = h;
+				labelPaint.setTextAlign(Align.LEFT);
+			canvas.drawText(horlabels[i], x, height - 4, labelPaint);
+		}
+
+		labelPaint.setTextAlign(Align.CENTER);
+		canvas.drawText(title, (graphwidth / 2) + horstart, border - 4, labelPaint);
+
+		// the legend, in the colors of the series
+		for (int s = 0; s < seriesCount; s++) {
+			String name = source.getSeriesName(s);
+			if (name != null)
+				canvas.drawText(name, width, border + 12 * (s + 1), dataPaints[s]);
+		}
+		layerValid = true;
+	}
+
+	/**
+	 * Reads the values from first to last from the source, unless they were
+	 * read already. The window read holds as many values again on each side,
+	 * so a pan of up to a screen doesn't read them again
+	 */
+	private void fetchWindow(int first, int last) {
+		if (first >= windowFrom && last <= windowTo)
+			return;
+		int margin = last - first;
+		windowFrom = Math.max(first - margin, 0);
+		windowTo = Math.min(last + margin, source.size());
+		if (window.length < (windowTo - windowFrom) * seriesCount)
+			window = new float[(windowTo - windowFrom) * seriesCount];
+		source.getValues(windowFrom, windowTo, window);
+	}
+
+	/**
+	 * Reads the summary of the runs of per values from first (the start of a
+	 * run) to last from the source, unless it was read already, with as many
+	 * runs again on each side as fetchWindow
+	 */
+	private void fetchSummary(int first, int last, int per) {
+		if (per == summaryPer && first >= summaryFrom && last <= summaryTo)
+			return;
+		int margin = (last - first + per - 1) / per * per;
+		summaryFrom = Math.max(first - margin, 0);
+		summaryTo = Math.min(last + margin, source.size());
+		summaryPer = per;
+		int runs = (summaryTo - summaryFrom + per - 1) / per;
+		if (summary.length < runs * 2 * seriesCount)
+			summary = new float[runs * 2 * seriesCount];
+		source.getSummary(summaryFrom, summaryTo, per, summary);
+	}
+
+	/**
+	 * Scales the values in the viewport to the view, into the bar rectangles
+	 * or the line path drawn by onDraw
+	 */
+	private void computeGeometry() {
+		float border = BORDER;
+		float horstart = border * 2;
+		float height = getHeight();
+		float graphheight = height - (2 * border);
+		float graphwidth = getGraphWidth();
+
+		geometryLength = 0;
+		lineEmpty = true;
+		for (int s = 0; s < seriesCount; s++)
+			lines[s].rewind();
+		geometryValid = true;
+		shownCount = 0;
+		int first = (int) viewStart;
+		int last = Math.min((int) Math.ceil(viewStart + viewCount), source.size());
+		if (last <= first)
+			return;
+		// a line with more values than pixel columns is drawn from the lowest
+		// and highest value of runs of per values, a power of two so zooming
+		// only reads the summary again past twice or half the values
+		int per = 1;
+		int columns = (int) graphwidth;
+		if (type == LINE && columns > 0)
+			while ((last - first + per - 1) / per > columns)
+				per *= 2;
+		int series = seriesCount;
+		float[] values;
+		int offset;
+		int count; /* the points drawn of each series */
+		if (per == 1) {
+			fetchWindow(first, last);
+			values = window;
+			offset = (first - windowFrom) * series;
+			count = last - first;
+		} else {
+			first -= first % per;
+			fetchSummary(first, last, per);
+			values = summary;
+			offset = (first - summaryFrom) / per * 2 * series;
+			count = (last - first + per - 1) / per * 2;
+		}
+
+		// the values drawn, on their way from the previous ones while
+		// animating, and both ends of the scale in the same pass
+		int length = count * series;
+		if (shown.length < length)
+			shown = new float[length];
+		boolean stack = stacked && type == BAR;
+		float max = Integer.MIN_VALUE;
+		float min = stack ? 0 : Integer.MAX_VALUE;
+		for (int k = 0, n = 0; k < count; k++) {
+			float sum = 0;
+			for (int s = 0; s < series; s++, n++) {
+				float value = values[offset + n];
+				if (progress < 1) {
+					float from = k < previousCount ? previous[n] : 0;
+					value = from + (value - from) * progress;
 				}
+				shown[n] = value;
+				sum += value;
+				if (value > max)
+					max = value;
+				if (value < min)
+					min = value;
 			}
+			if (stack && sum > max)
+				max = sum;
 		}
-	}
+		shownCount = count;
+		float diff = max - min;
+		if (max == min)
+			return;
 
-	private float getMax() {
-		float largest = Integer.MIN_VALUE;
-		for (int i = 0; i < values.length; i++)
-			if (values[i] > largest)
-				largest = values[i];
-		return largest;
+		float colwidth = graphwidth / viewCount;
+		if (type == BAR) {
+			if (geometry == null || geometry.length < length * 4)
+				geometry = new float[length * 4];
+			float barwidth = stack ? colwidth - 1 : (colwidth - 1) / series;
+			float bottom = height - (border - 1);
+			for (int k = 0, n = 0; k < count; k++) {
+				float x = ((first + k - viewStart) * colwidth) + horstart;
+				float base = height - border; /* the top of the bar below, when stacked */
+				for (int s = 0; s < series; s++, n++) {
+					float h = graphheight * ((shown[n] - min) / diff);
+					float left = stack ? x : x + s * barwidth;
+					float top = stack ? base - h : (border - h) + graphheight;
+					geometry[geometryLength++] = left;
+					geometry[geometryLength++] = top;
+					geometry[geometryLength++] = left + barwidth;
+					geometry[geometryLength++] = stack && s > 0 ? base : bottom;
+					if (stack)
+						base = top;
+				}
+			}
+		} else
+			computeLines(first, count, per, min, diff, horstart, graphwidth, graphheight);
 	}
 
-	private float getMin() {
-		float smallest = Integer.MAX_VALUE;
-		for (int i = 0; i < values.length; i++)
-			if (values[i] < smallest)
-				smallest = values[i];
-		return smallest;
+	/**
+	 * Builds the line of each series into a path, every series in the same
+	 * pass. A decimated line has two points per run, its lowest and its
+	 * highest value in the order they come, so the peaks survive and each path
+	 * has at most two points per column however many values there are
+	 *
+	 * @param per
+	 *            the values of each run, 1 when each point is a value
+	 */
+	private void computeLines(int first, int count, int per, float min, float diff, float horstart, float graphwidth, float graphheight) {
+		int series = seriesCount;
+		float bottom = BORDER + graphheight;
+		float scale = graphheight / diff;
+		if (count < 2)
+			return;
+
+		// the middle of the first value or run, from the fractional viewStart
+		float colwidth = graphwidth / viewCount;
+		float left = ((first - viewStart) * colwidth) + (horstart + 1) + colwidth * per / 2;
+		for (int k = 0, n = 0; k < count; k++) {
+			float x = left + (per == 1 ? k : k / 2 * per) * colwidth;
+			for (int s = 0; s < series; s++, n++) {
+				float y = bottom - (shown[n] - min) * scale;
+				if (k == 0)
+					lines[s].moveTo(x, y);
+				else
+					lines[s].lineTo(x, y);
+			}
+		}
+		lineEmpty = false;
 	}
 
 }
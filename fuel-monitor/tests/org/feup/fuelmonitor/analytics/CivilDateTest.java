@@ -0,0 +1,31 @@
+package org.feup.fuelmonitor.analytics;
+
+import junit.framework.TestCase;
+
+public class CivilDateTest extends TestCase {
+
+	public void testToEpochDay() {
+		assertEquals(0, CivilDate.toEpochDay(1970, 1, 1));
+		assertEquals(-1, CivilDate.toEpochDay(1969, 12, 31));
+		assertEquals(11016, CivilDate.toEpochDay(2000, 2, 29));
+		assertEquals(15705, CivilDate.toEpochDay(2012, 12, 31));
+		assertEquals(15706, CivilDate.toEpochDay(2013, 1, 1));
+	}
+
+	public void testFromEpochDay() {
+		assertEquals(19700101, CivilDate.fromEpochDay(0));
+		assertEquals(19691231, CivilDate.fromEpochDay(-1));
+		assertEquals(20000229, CivilDate.fromEpochDay(11016));
+		assertEquals(20000301, CivilDate.fromEpochDay(11017));
+		assertEquals(20130101, CivilDate.fromEpochDay(15706));
+	}
+
+	public void testRoundTrip() {
+		int last = CivilDate.toEpochDay(9999, 12, 31);
+		for (int day = CivilDate.toEpochDay(1, 1, 1); day <= last; day++) {
+			int date = CivilDate.fromEpochDay(day);
+			assertEquals(day, CivilDate.toEpochDay(date / 10000,
+					date / 100 % 100, date % 100));
+		}
+	}
+}
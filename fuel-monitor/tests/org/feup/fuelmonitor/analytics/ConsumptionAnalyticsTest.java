@@ -0,0 +1,122 @@
+package org.feup.fuelmonitor.analytics;
+
+import junit.framework.TestCase;
+
+public class ConsumptionAnalyticsTest extends TestCase {
+
+	private static final double DELTA = 1e-4;
+
+	private FuelingSeries mSeries;
+
+	/**
+	 * Four fuelings from December 2012 to February 2013, the third one without
+	 * kms driven since the previous
+	 */
+	@Override
+	protected void setUp() {
+		mSeries = new FuelingSeries(1000, 4);
+		mSeries.add(1500, 40, 60, CivilDate.toEpochDay(2012, 12, 31), 2);
+		mSeries.add(2000, 30, 45, CivilDate.toEpochDay(2013, 1, 1), 1);
+		mSeries.add(2000, 10, 15, CivilDate.toEpochDay(2013, 1, 31), 3);
+		mSeries.add(2600, 36, 54, CivilDate.toEpochDay(2013, 2, 1), 2);
+	}
+
+	public void testTotals() {
+		ConsumptionAnalytics.Totals totals = ConsumptionAnalytics
+				.totals(mSeries);
+		assertEquals(4, totals.fuelings);
+		assertEquals(1600, totals.distance);
+		assertEquals(116, totals.litres, DELTA);
+		assertEquals(174, totals.cost, DELTA);
+		assertEquals(7.25, totals.getConsumption(), DELTA);
+		assertEquals(0.10875, totals.getCostPerKm(), DELTA);
+	}
+
+	public void testTotalsWithoutDistance() {
+		FuelingSeries series = new FuelingSeries(1000, 0);
+		assertEquals(0, ConsumptionAnalytics.totals(series).distance);
+		assertEquals(0, ConsumptionAnalytics.totals(series).getConsumption(),
+				DELTA);
+
+		series.add(1000, 20, 30, 0, 2);
+		ConsumptionAnalytics.Totals totals = ConsumptionAnalytics
+				.totals(series);
+		assertEquals(1, totals.fuelings);
+		assertEquals(0, totals.distance);
+		assertEquals(0, totals.getConsumption(), DELTA);
+		assertEquals(0, totals.getCostPerKm(), DELTA);
+	}
+
+	public void testRollingConsumption() {
+		float[] consumption = ConsumptionAnalytics.rollingConsumption(mSeries,
+				2);
+		assertEquals(4, consumption.length);
+		assertEquals(8, consumption[0], DELTA); /* 40 l / 500 km */
+		assertEquals(7, consumption[1], DELTA); /* 70 l / 1000 km */
+		assertEquals(8, consumption[2], DELTA); /* 40 l / 500 km */
+		assertEquals(7.6667, consumption[3], DELTA); /* 46 l / 600 km */
+	}
+
+	public void testRollingConsumptionOfEachFueling() {
+		float[] consumption = ConsumptionAnalytics.rollingConsumption(mSeries,
+				1);
+		assertEquals(8, consumption[0], DELTA);
+		assertEquals(6, consumption[1], DELTA);
+		assertEquals(0, consumption[2], DELTA); /* no kms driven */
+		assertEquals(6, consumption[3], DELTA);
+	}
+
+	public void testRollingConsumptionRejectsEmptyWindow() {
+		try {
+			ConsumptionAnalytics.rollingConsumption(mSeries, 0);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testToMonthAtYearEdges() {
+		int december = ConsumptionAnalytics.toMonth(2012, 12);
+		assertEquals(december, ConsumptionAnalytics.toMonth(CivilDate
+				.toEpochDay(2012, 12, 31)));
+		assertEquals(december + 1, ConsumptionAnalytics.toMonth(CivilDate
+				.toEpochDay(2013, 1, 1)));
+		assertEquals(december + 1, ConsumptionAnalytics.toMonth(2013, 1));
+		assertEquals(ConsumptionAnalytics.toMonth(2000, 2),
+				ConsumptionAnalytics.toMonth(CivilDate.toEpochDay(2000, 2, 29)));
+	}
+
+	public void testByMonthAcrossYears() {
+		ConsumptionAnalytics.Breakdown months = ConsumptionAnalytics.byMonth(
+				mSeries, ConsumptionAnalytics.toMonth(2012, 12), 3);
+		assertEquals(3, months.size());
+		// December 2012
+		assertEquals(1, months.fuelings[0]);
+		assertEquals(500, months.distance[0]);
+		assertEquals(8, months.getConsumption(0), DELTA);
+		// January 2013, with the fueling without kms driven
+		assertEquals(2, months.fuelings[1]);
+		assertEquals(500, months.distance[1]);
+		assertEquals(40, months.litres[1], DELTA);
+		assertEquals(8, months.getConsumption(1), DELTA);
+		// February 2013
+		assertEquals(1, months.fuelings[2]);
+		assertEquals(6, months.getConsumption(2), DELTA);
+	}
+
+	public void testByMonthSkipsFuelingsOutsideTheMonths() {
+		ConsumptionAnalytics.Breakdown months = ConsumptionAnalytics.byMonth(
+				mSeries, ConsumptionAnalytics.toMonth(2013, 1), 1);
+		assertEquals(2, months.fuelings[0]);
+		assertEquals(500, months.distance[0]);
+	}
+
+	public void testByMonthWithoutDistance() {
+		FuelingSeries series = new FuelingSeries(1000, 1);
+		series.add(1000, 20, 30, CivilDate.toEpochDay(2013, 1, 1), 2);
+		ConsumptionAnalytics.Breakdown months = ConsumptionAnalytics.byMonth(
+				series, ConsumptionAnalytics.toMonth(2013, 1), 1);
+		assertEquals(1, months.fuelings[0]);
+		assertEquals(0, months.getConsumption(0), DELTA);
+		assertEquals(0, months.getCostPerKm(0), DELTA);
+	}
+}